@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell.benchmark;
+
+import com.profesorfalken.jpowershell.PowerShell;
+import com.profesorfalken.jpowershell.PowerShellResponse;
+import com.profesorfalken.jpowershell.StubPowerShell;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the round-trip of commands and scripts, run against {@link StubPowerShell} so the
+ * numbers only measure jPowerShell and are reproducible in any machine.<p>
+ * Run them with <i>mvn -Pbenchmark verify</i>. JMH options can be passed using the property
+ * <i>benchmark.args</i>, for example <i>-Dbenchmark.args="PowerShellBenchmark.executeCommand -f 1"</i>
+ *
+ * @author Javier Garcia Alonso
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PowerShellBenchmark {
+
+    /**
+     * Opened session on the stub console
+     */
+    @State(Scope.Benchmark)
+    public static class Session {
+
+        PowerShell powerShell;
+        PowerShell inMemoryScriptPowerShell;
+
+        @Setup(Level.Trial)
+        public void open() throws IOException {
+            String executable = StubPowerShell.createExecutable();
+            this.powerShell = PowerShell.openSession(executable);
+
+            Map<String, String> config = new HashMap<>();
+            config.put("inMemoryScripts", "true");
+            this.inMemoryScriptPowerShell = PowerShell.openSession(executable).configuration(config);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            this.powerShell.close();
+            this.inMemoryScriptPowerShell.close();
+        }
+    }
+
+    /**
+     * Command and script producing the given number of output lines, only used by the benchmarks
+     * whose work depends on the size of the output
+     */
+    @State(Scope.Benchmark)
+    public static class Output {
+
+        @Param({"1", "100", "10000", "100000"})
+        public int outputLines;
+
+        String rangeCommand;
+        String scriptPath;
+
+        @Setup(Level.Trial)
+        public void create() throws IOException {
+            this.rangeCommand = "1.." + this.outputLines;
+
+            StringBuilder scriptContent = new StringBuilder();
+            for (int i = 1; i <= Math.min(this.outputLines, 1000); i++) {
+                scriptContent.append("Write-Output \"").append(i).append('"').append(System.lineSeparator());
+            }
+            this.scriptPath = createTempFile("psbenchmark", ".ps1", scriptContent.toString()).getAbsolutePath();
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() {
+            new File(this.scriptPath).delete();
+        }
+    }
+
+    /**
+     * Launcher of the stub console, created once so opening a session does not measure writing it
+     */
+    @State(Scope.Benchmark)
+    public static class Executable {
+
+        String path;
+
+        @Setup(Level.Trial)
+        public void create() throws IOException {
+            this.path = StubPowerShell.createExecutable();
+        }
+    }
+
+    @Benchmark
+    public PowerShellResponse executeCommand(Session session) {
+        return session.powerShell.executeCommand("Write-Output \"jPowerShell\"");
+    }
+
+    @Benchmark
+    public PowerShellResponse executeCommandOutput(Session session, Output output) {
+        return session.powerShell.executeCommand(output.rangeCommand);
+    }
+
+    @Benchmark
+    public long executeCommandStreaming(Session session, Output output) {
+        long[] count = new long[1];
+        session.powerShell.executeCommandStreaming(output.rangeCommand, line -> count[0]++);
+        return count[0];
+    }
+
+    @Benchmark
+    public List<PowerShellResponse> executeBatch(Session session) {
+        List<String> commands = new ArrayList<>(50);
+        for (int i = 0; i < 50; i++) {
+            commands.add("Write-Output \"" + i + "\"");
+        }
+        return session.powerShell.executeBatch(commands);
+    }
+
+    @Benchmark
+    public PowerShellResponse executeScript(Session session, Output output) {
+        return session.powerShell.executeScript(output.scriptPath);
+    }
+
+    @Benchmark
+    public PowerShellResponse executeScriptInMemory(Session session, Output output) {
+        return session.inMemoryScriptPowerShell.executeScript(output.scriptPath);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public void openAndCloseSession(Executable executable) {
+        PowerShell.openSession(executable.path).close();
+    }
+
+    private static File createTempFile(String prefix, String suffix, String content) throws IOException {
+        File file = File.createTempFile(prefix, suffix);
+        file.deleteOnExit();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(content);
+        }
+        return file;
+    }
+}
@@ -17,9 +17,19 @@ package com.profesorfalken.jpowershell;
 
 import java.io.*;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +41,9 @@ import java.util.logging.Logger;
  * Once the session is finished it should be closed in order to free resources.
  * For doing that, you can either call manually close() or implement a try with resources as
  * it implements {@link AutoCloseable}.
+ * <p>
+ * Commands can be sent from several threads at the same time. They are run one after the other, in the
+ * order they are sent, by the same PowerShell console. Use a {@link PowerShellPool} to run them in parallel.
  *
  * @author Javier Garcia Alonso
  */
@@ -39,30 +52,92 @@ public class PowerShell implements AutoCloseable {
     //Declare logger
     private static final Logger logger = Logger.getLogger(PowerShell.class.getName());
 
-    // Process to store PowerShell session
-    private Process p;
+    // Process to store PowerShell session. It is replaced if the session is restarted
+    private volatile Process p;
     //PID of the process
     private long pid = -1;
-    // Writer to send commands
+    // Writer to send commands and lock which must be held to use it
     private PrintWriter commandWriter;
+    private final Object commandLock = new Object();
+    // Processor which reads the output of all the commands
+    private PowerShellCommandProcessor commandProcessor;
+    private PowerShellCommandProcessor errorProcessor;
 
     // Threaded session variables
-    private boolean closed = false;
-    private ExecutorService threadpool;
+    private volatile boolean closed = false;
+    private ScheduledExecutorService threadpool;
+    // Runs the reader of the output and the close task. The same as the thread pool unless virtual threads are used
+    private ExecutorService taskExecutor;
+    // Executor given by the user and shared with other sessions, which is never shut down by the session
+    private ScheduledExecutorService sharedExecutor;
+    private Future<?> readerTask;
+    private Future<?> errorReaderTask;
+    private ScheduledFuture<?> healthCheckTask;
+    // True while the process is being restarted. Only changed holding the lock of the writer
+    private volatile boolean restarting = false;
+    // Commands sent while the process is restarted, written to the new process once it is ready. Guarded by the lock of the writer
+    private final Map<PowerShellCommandFrame, String> pendingCommands = new LinkedHashMap<>();
+
+    // Path used to start the process, also when the session is restarted
+    private String powerShellExecutablePath;
 
     //Default PowerShell executable path
     private static final String DEFAULT_WIN_EXECUTABLE = "powershell.exe";
     private static final String DEFAULT_LINUX_EXECUTABLE = "powershell";
 
     // Config values
-    private int waitPause = 5;
     private long maxWait = 10000;
     private File tempFolder = null;
+    private boolean inMemoryScripts = false;
+    private boolean cacheScripts = false;
+    private long startupWait = 30000;
+    private String preloadModules = "";
+    private int readBufferSize = PowerShellCommandProcessor.DEFAULT_BUFFER_SIZE;
+    private boolean virtualThreads = false;
+    private boolean coalesceCommands = false;
+    private long healthCheckInterval = 0;
+    private long healthCheckTimeout = 5000;
+    private boolean restartOnCancel = false;
+
+    //Frame of the last command sent. The commands finish in order, so all are finished once it is
+    private volatile PowerShellCommandFrame lastFrame;
+
+    // Receives the measures of the session
+    private PowerShellMetrics metrics = new PowerShellMetrics() {
+    };
+
+    // Commands running in the session, shared with identical commands when coalesceCommands is enabled
+    private final PowerShellCommandCoalescer coalescer = new PowerShellCommandCoalescer();
+
+    // Scripts already loaded as functions in the session
+    private final PowerShellScriptCache scriptCache = new PowerShellScriptCache();
 
-    // Variables used for script mode
-    private boolean scriptMode = false;
+    /**
+     * Line that used to be written at the end of the scripts in order to detect their end.
+     *
+     * @deprecated the end of every command, including scripts, is now detected using a unique end marker
+     */
+    @Deprecated
     public static final String END_SCRIPT_STRING = "--END-JPOWERSHELL-SCRIPT--";
 
+    // Marker written after each command in order to know when its output is finished
+    private static final String END_COMMAND_STRING = "--END-JPOWERSHELL-COMMAND-";
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    // Depth of the properties serialized when the output is read as CLIXML
+    private static final int CLIXML_DEPTH = 2;
+    // Depth of the properties converted when the output is read as JSON
+    private static final int JSON_DEPTH = 2;
+    // Start of the lines of output carrying a serialized object, to tell them apart from host and warning messages
+    private static final String OBJECT_TAG = "JPOWERSHELL-OBJECT:";
+    private final AtomicLong commandCount = new AtomicLong();
+
+    // Wait in ms before starting again a process which could not be restarted
+    private static final long RESTART_RETRY_DELAY = 5000;
+
+    // Status of the last finished command
+    private volatile boolean lastCommandSucceeded = true;
+
     // Private constructor. Instance using openSession method
     private PowerShell() {
     }
@@ -74,10 +149,33 @@ public class PowerShell implements AutoCloseable {
      * <p>
      * The values that can be overridden are:
      * <ul>
-     * <li>waitPause: the pause in ms between each loop pooling for a response.
-     * Default value is 10</li>
-     * <li>maxWait: the maximum wait in ms for the command to execute. Default value
-     * is 10000</li>
+     * <li>maxWait: the maximum wait in ms for the command to execute, counted once the previous
+     * commands of the session are finished. The wait for these commands is limited to maxWait too.
+     * Default value is 10000</li>
+     * <li>inMemoryScripts: if true, scripts are sent through the console input instead of
+     * being copied to a temporary file. Default value is false</li>
+     * <li>cacheScripts: if true, each script is loaded once per session as a function, which is
+     * then called in the next executions. Default value is false</li>
+     * <li>startupWait: the maximum wait in ms for the PowerShell console to be ready when the session
+     * is opened. Default value is 30000</li>
+     * <li>preloadModules: comma separated list of modules imported when the session is opened, so
+     * the first commands using them do not pay their loading time. Default value is empty</li>
+     * <li>readBufferSize: the size in bytes of the buffer used to read the output of the session.
+     * Default value is 65536</li>
+     * <li>virtualThreads: if true and the JVM supports them (Java 21+), the session reads its output and
+     * is closed using virtual threads, and its timeouts are handled by a scheduler shared by all these sessions,
+     * instead of owning a pool of platform threads. Default value is false</li>
+     * <li>coalesceCommands: if true, identical commands requested while the same command is running in
+     * the session get its response instead of being executed again. Default value is false</li>
+     * <li>healthCheckInterval: if greater than 0, every this number of ms the session checks that PowerShell
+     * is alive and, when idle, that it answers a ping. When the running command already finished in timeout or
+     * was cancelled, it checks that the command finishes within healthCheckTimeout instead. Otherwise the process
+     * is restarted with the same configuration. Default value is 0 (disabled)</li>
+     * <li>healthCheckTimeout: the maximum wait in ms for the answer to the ping of the health check, or for a
+     * command which already finished in timeout or was cancelled to finish. Default value is 5000</li>
+     * <li>restartOnCancel: if true, when a running command is cancelled or finishes in timeout, the PowerShell
+     * process is restarted in order to stop it. Otherwise the command keeps running and its output is
+     * discarded. Default value is false</li>
      * </ul>
      *
      * @param config map with the configuration in key/value format
@@ -85,13 +183,30 @@ public class PowerShell implements AutoCloseable {
      */
     public PowerShell configuration(Map<String, String> config) {
         try {
-            this.waitPause = Integer
-                    .valueOf((config != null && config.get("waitPause") != null) ? config.get("waitPause")
-                            : PowerShellConfig.getConfig().getProperty("waitPause"));
             this.maxWait = Long.valueOf((config != null && config.get("maxWait") != null) ? config.get("maxWait")
                     : PowerShellConfig.getConfig().getProperty("maxWait"));
             this.tempFolder = (config != null && config.get("tempFolder") != null) ? getTempFolder(config.get("tempFolder"))
                     : getTempFolder(PowerShellConfig.getConfig().getProperty("tempFolder"));
+            this.inMemoryScripts = Boolean.valueOf((config != null && config.get("inMemoryScripts") != null) ? config.get("inMemoryScripts")
+                    : PowerShellConfig.getConfig().getProperty("inMemoryScripts"));
+            this.cacheScripts = Boolean.valueOf((config != null && config.get("cacheScripts") != null) ? config.get("cacheScripts")
+                    : PowerShellConfig.getConfig().getProperty("cacheScripts"));
+            this.startupWait = Long.valueOf((config != null && config.get("startupWait") != null) ? config.get("startupWait")
+                    : PowerShellConfig.getConfig().getProperty("startupWait", "30000"));
+            this.preloadModules = (config != null && config.get("preloadModules") != null) ? config.get("preloadModules")
+                    : PowerShellConfig.getConfig().getProperty("preloadModules", "");
+            this.readBufferSize = Integer.valueOf((config != null && config.get("readBufferSize") != null) ? config.get("readBufferSize")
+                    : PowerShellConfig.getConfig().getProperty("readBufferSize", "65536"));
+            this.virtualThreads = Boolean.valueOf((config != null && config.get("virtualThreads") != null) ? config.get("virtualThreads")
+                    : PowerShellConfig.getConfig().getProperty("virtualThreads"));
+            this.coalesceCommands = Boolean.valueOf((config != null && config.get("coalesceCommands") != null) ? config.get("coalesceCommands")
+                    : PowerShellConfig.getConfig().getProperty("coalesceCommands"));
+            this.healthCheckInterval = Long.valueOf((config != null && config.get("healthCheckInterval") != null) ? config.get("healthCheckInterval")
+                    : PowerShellConfig.getConfig().getProperty("healthCheckInterval", "0"));
+            this.healthCheckTimeout = Long.valueOf((config != null && config.get("healthCheckTimeout") != null) ? config.get("healthCheckTimeout")
+                    : PowerShellConfig.getConfig().getProperty("healthCheckTimeout", "5000"));
+            this.restartOnCancel = Boolean.valueOf((config != null && config.get("restartOnCancel") != null) ? config.get("restartOnCancel")
+                    : PowerShellConfig.getConfig().getProperty("restartOnCancel"));
         } catch (NumberFormatException nfe) {
             logger.log(Level.SEVERE,
                     "Could not read configuration. Using default values.", nfe);
@@ -99,6 +214,21 @@ public class PowerShell implements AutoCloseable {
         return this;
     }
 
+    /**
+     * Sets the object which receives the measures of the session: latency of the commands,
+     * size of their output, timeouts...
+     *
+     * @param metrics the metrics receiver. Ex: a {@link PowerShellMetricsRecorder}
+     * @return instance to chain
+     */
+    public PowerShell metrics(PowerShellMetrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("Metrics cannot be null");
+        }
+        this.metrics = metrics;
+        return this;
+    }
+
     /**
      * Creates a session in PowerShell console an returns an instance which allows
      * to execute commands in PowerShell context.<br>
@@ -122,103 +252,855 @@ public class PowerShell implements AutoCloseable {
      * @throws PowerShellNotAvailableException if PowerShell is not installed in the system
      */
     public static PowerShell openSession(String customPowerShellExecutablePath) throws PowerShellNotAvailableException {
-        PowerShell powerShell = new PowerShell();
+        return openSession(customPowerShellExecutablePath, null);
+    }
+
+    /**
+     * Creates a session in PowerShell console using the given configuration, which is already applied
+     * while the session is started (see <i>startupWait</i> and <i>preloadModules</i> in {@link #configuration(Map)})
+     *
+     * @param customPowerShellExecutablePath the path of powershell executable or null to use the default one
+     * @param config                         map with the configuration in key/value format
+     * @return an instance of the class
+     * @throws PowerShellNotAvailableException if PowerShell is not installed in the system
+     */
+    public static PowerShell openSession(String customPowerShellExecutablePath, Map<String, String> config) throws PowerShellNotAvailableException {
+        return builder().executablePath(customPowerShellExecutablePath).configuration(config).open();
+    }
+
+    /**
+     * Creates a builder which allows to set all the options of a session before opening it, like
+     * the executor shared with other sessions:
+     * <pre>
+     * PowerShell powerShell = PowerShell.builder()
+     *         .configuration(myConfig)
+     *         .executor(sharedExecutor)
+     *         .open();
+     * </pre>
+     *
+     * @return the builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builder used to open a session with custom options. Instance using {@link PowerShell#builder()} method
+     */
+    public static final class Builder {
 
-        // Start with default configuration
-        powerShell.configuration(null);
+        private String executablePath = null;
+        private Map<String, String> config = null;
+        private PowerShellMetrics metrics = null;
+        private ScheduledExecutorService executor = null;
 
-        String powerShellExecutablePath = customPowerShellExecutablePath == null ? (OSDetector.isWindows() ? DEFAULT_WIN_EXECUTABLE : DEFAULT_LINUX_EXECUTABLE) : customPowerShellExecutablePath;
+        private Builder() {
+        }
 
-        return powerShell.initalize(powerShellExecutablePath);
+        /**
+         * Sets a PowersShell executable path different from default
+         *
+         * @param customPowerShellExecutablePath the path of powershell executable or null to use the default one
+         * @return instance to chain
+         */
+        public Builder executablePath(String customPowerShellExecutablePath) {
+            this.executablePath = customPowerShellExecutablePath;
+            return this;
+        }
+
+        /**
+         * Sets the configuration of the session. See {@link PowerShell#configuration(Map)}
+         *
+         * @param config map with the configuration in key/value format
+         * @return instance to chain
+         */
+        public Builder configuration(Map<String, String> config) {
+            this.config = config;
+            return this;
+        }
+
+        /**
+         * Sets the object which receives the measures of the session. See {@link PowerShell#metrics(PowerShellMetrics)}
+         *
+         * @param metrics the metrics receiver
+         * @return instance to chain
+         */
+        public Builder metrics(PowerShellMetrics metrics) {
+            if (metrics == null) {
+                throw new IllegalArgumentException("Metrics cannot be null");
+            }
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Sets an executor shared with other sessions, used instead of creating a thread pool for the session.
+         * <p>
+         * The session uses it to schedule the timeouts of the commands, and also to read its output and close
+         * it unless virtual threads are enabled. As reading the standard and error outputs takes two threads for
+         * the whole life of the session, the executor must have more than two threads per open session. It is not
+         * shut down when the session is closed
+         *
+         * @param executor the shared executor
+         * @return instance to chain
+         */
+        public Builder executor(ScheduledExecutorService executor) {
+            if (executor == null) {
+                throw new IllegalArgumentException("Executor cannot be null");
+            }
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Creates the session in PowerShell console
+         *
+         * @return an instance of PowerShell
+         * @throws PowerShellNotAvailableException if PowerShell is not installed in the system
+         */
+        public PowerShell open() throws PowerShellNotAvailableException {
+            PowerShell powerShell = new PowerShell();
+
+            // Start with default configuration overridden by the given one
+            powerShell.configuration(this.config);
+            if (this.metrics != null) {
+                powerShell.metrics(this.metrics);
+            }
+            powerShell.sharedExecutor = this.executor;
+
+            String powerShellExecutablePath = this.executablePath == null ? (OSDetector.isWindows() ? DEFAULT_WIN_EXECUTABLE : DEFAULT_LINUX_EXECUTABLE) : this.executablePath;
+
+            return powerShell.initalize(powerShellExecutablePath);
+        }
+    }
+
+    // Process launched for the session with the writer of its input and the readers of its output, kept apart
+    // from the session until it is ready to receive commands
+    private static final class Console {
+        private final Process process;
+        private final PrintWriter writer;
+        private final PowerShellCommandProcessor commandProcessor;
+        private final PowerShellCommandProcessor errorProcessor;
+        private Future<?> readerTask;
+        private Future<?> errorReaderTask;
+        private long pid;
+        //First command sent, answered once the console is ready
+        private PowerShellCommandFrame probe;
+
+        private Console(Process process, PrintWriter writer, PowerShellCommandProcessor commandProcessor,
+                        PowerShellCommandProcessor errorProcessor) {
+            this.process = process;
+            this.writer = writer;
+            this.commandProcessor = commandProcessor;
+            this.errorProcessor = errorProcessor;
+        }
     }
 
     // Initializes PowerShell console in which we will enter the commands
     private PowerShell initalize(String powerShellExecutablePath) throws PowerShellNotAvailableException {
-        String codePage = PowerShellCodepage.getIdentifierByCodePageName(Charset.defaultCharset().name());
+        this.powerShellExecutablePath = powerShellExecutablePath;
+
+        startThreads();
+        try {
+            startProcess();
+        } catch (PowerShellNotAvailableException ex) {
+            this.closed = true;
+            stopThreads();
+            throw ex;
+        }
+
+        if (this.healthCheckInterval > 0) {
+            this.healthCheckTask = this.threadpool.scheduleWithFixedDelay(this::checkHealth,
+                    this.healthCheckInterval, this.healthCheckInterval, TimeUnit.MILLISECONDS);
+        }
+
+        return this;
+    }
+
+    // Chooses the threads used to read the output, close the session and handle timeouts
+    private void startThreads() {
+        ExecutorService virtualThreadExecutor = this.virtualThreads ? PowerShellThreads.newVirtualThreadExecutor() : null;
+        if (this.virtualThreads && virtualThreadExecutor == null) {
+            logger.log(Level.INFO, "Virtual threads are not supported by this JVM. Using platform threads");
+        }
+        if (virtualThreadExecutor != null) {
+            this.taskExecutor = virtualThreadExecutor;
+            this.threadpool = this.sharedExecutor != null ? this.sharedExecutor : PowerShellThreads.getTimeoutScheduler();
+        } else if (this.sharedExecutor != null) {
+            this.taskExecutor = this.sharedExecutor;
+            this.threadpool = this.sharedExecutor;
+        } else {
+            // Init thread pool. 3 threads are needed: two to read standard and error output and the other to close it and handle timeouts
+            ScheduledThreadPoolExecutor scheduledThreadPool = new ScheduledThreadPoolExecutor(3);
+            scheduledThreadPool.setRemoveOnCancelPolicy(true);
+            this.threadpool = scheduledThreadPool;
+            this.taskExecutor = scheduledThreadPool;
+        }
+    }
+
+    // Launches the PowerShell process and waits until it is ready to receive commands
+    private void startProcess() throws PowerShellNotAvailableException {
+        Console console = launchConsole();
+        waitReady(console);
+
+        CompletableFuture<PowerShellResponse> preload;
+        synchronized (this.commandLock) {
+            preload = installConsole(console);
+        }
+        //The session is opened once the modules are loaded, so the first commands do not wait for them
+        if (preload != null) {
+            waitResponse(preload);
+        }
+    }
+
+    // Launches a new PowerShell process with the readers of its output and sends it the probe which tells when it
+    // is ready. The process is not used by the session until it is installed, so the lock of the writer is not needed
+    private Console launchConsole() throws PowerShellNotAvailableException {
+        String codePage = PowerShellCodepage.getIdentifierByCharset(Charset.defaultCharset()).orElse("65001");
+        Charset charset = getConsoleCharset(codePage);
         ProcessBuilder pb;
 
         //Start powershell executable in process
         if (OSDetector.isWindows()) {
-            pb = new ProcessBuilder("cmd.exe", "/c", "chcp", codePage, ">", "NUL", "&", powerShellExecutablePath,
+            pb = new ProcessBuilder("cmd.exe", "/c", "chcp", codePage, ">", "NUL", "&", this.powerShellExecutablePath,
                     "-ExecutionPolicy", "Bypass", "-NoExit", "-NoProfile", "-Command", "-");
         } else {
-            pb = new ProcessBuilder(powerShellExecutablePath, "-nologo", "-noexit", "-Command", "-");
+            pb = new ProcessBuilder(this.powerShellExecutablePath, "-nologo", "-noexit", "-Command", "-");
         }
 
-        //Merge standard and error streams
-        pb.redirectErrorStream(true);
-
+        Process process;
         try {
             //Launch process
-            p = pb.start();
+            process = pb.start();
+        } catch (IOException ex) {
+            throw new PowerShellNotAvailableException(
+                    "Cannot execute PowerShell. Please make sure that it is installed in your system", ex);
+        }
 
-            if (p.waitFor(5, TimeUnit.SECONDS) && !p.isAlive()) {
-                throw new PowerShellNotAvailableException(
-                        "Cannot execute PowerShell. Please make sure that it is installed in your system. Errorcode:" + p.exitValue());
+        //Prepare writer that will be used to send commands to powershell, and the processors that will read the output of all the commands
+        Console console = new Console(process,
+                new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(process.getOutputStream()), charset), true),
+                new PowerShellCommandProcessor(process.getInputStream(), charset, this.readBufferSize, false),
+                new PowerShellCommandProcessor(process.getErrorStream(), charset, this.readBufferSize, true));
+        try {
+            console.readerTask = this.taskExecutor.submit(console.commandProcessor);
+            console.errorReaderTask = this.taskExecutor.submit(console.errorProcessor);
+        } catch (RejectedExecutionException ex) {
+            destroyConsole(console);
+            throw new PowerShellNotAvailableException("PowerShell session is closed", ex);
+        }
+
+        //The PID is only asked to the console if the JVM cannot give it
+        console.pid = PowerShellProcesses.getPid(process);
+        console.probe = createFrame(null, null);
+        console.commandProcessor.enqueue(console.probe);
+        console.errorProcessor.enqueue(console.probe);
+        writeCommand(console.writer, console.probe, console.pid < 0 ? "$pid" : "");
+        console.writer.flush();
+        return console;
+    }
+
+    // Waits for the answer of the probe, which means that the console is ready to receive commands.
+    // Fails if the process ends or does not answer before the startup wait
+    private void waitReady(Console console) throws PowerShellNotAvailableException {
+        try {
+            String output = console.probe.getResult().get(this.startupWait, TimeUnit.MILLISECONDS);
+            if (console.pid < 0) {
+                console.pid = parsePID(output);
             }
-        } catch (IOException | InterruptedException ex) {
+        } catch (ExecutionException ex) {
+            String exitCodeMessage = getExitCodeMessage(console.process);
+            destroyConsole(console);
             throw new PowerShellNotAvailableException(
-                    "Cannot execute PowerShell. Please make sure that it is installed in your system", ex);
+                    "Cannot execute PowerShell. Please make sure that it is installed in your system" + exitCodeMessage, ex);
+        } catch (TimeoutException ex) {
+            destroyConsole(console);
+            throw new PowerShellNotAvailableException(
+                    "PowerShell console was not ready after " + this.startupWait + " ms");
+        } catch (InterruptedException ex) {
+            destroyConsole(console);
+            Thread.currentThread().interrupt();
+            throw new PowerShellNotAvailableException("Interrupted while waiting for PowerShell to start", ex);
         }
+    }
 
-        //Prepare writer that will be used to send commands to powershell
-        this.commandWriter = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(p.getOutputStream())), true);
+    // Makes the ready console the one used by the session. Then imports the configured modules and writes the commands
+    // sent while the process was restarted. It has to be called holding the lock of the writer
+    private CompletableFuture<PowerShellResponse> installConsole(Console console) {
+        this.p = console.process;
+        this.pid = console.pid;
+        this.commandWriter = console.writer;
+        this.commandProcessor = console.commandProcessor;
+        this.errorProcessor = console.errorProcessor;
+        this.readerTask = console.readerTask;
+        this.errorReaderTask = console.errorReaderTask;
+        this.restarting = false;
 
-        // Init thread pool. 2 threads are needed: one to write and read console and the other to close it
-        this.threadpool = Executors.newFixedThreadPool(2);
+        PowerShellCommandFrame lastPending = this.lastFrame;
+        CompletableFuture<PowerShellResponse> preload = preloadModules();
+        for (Map.Entry<PowerShellCommandFrame, String> pending : this.pendingCommands.entrySet()) {
+            PowerShellCommandFrame frame = pending.getKey();
+            if (frame.isDiscarded()) {
+                //Its response already finished in timeout or was cancelled, so it is not run at all
+                frame.fail(new CancellationException("Command discarded before being sent to PowerShell"));
+            } else {
+                writeCommand(frame, pending.getValue());
+            }
+        }
+        if (!this.pendingCommands.isEmpty()) {
+            this.lastFrame = lastPending;
+            this.pendingCommands.clear();
+        }
+        this.commandWriter.flush();
+        return preload;
+    }
 
-        //Get and store the PID of the process
-        this.pid = getPID();
+    // Imports the configured modules once, so they are already loaded when the first commands need them.
+    // It has to be called holding the lock of the writer. Returns null if there is no module to import
+    private CompletableFuture<PowerShellResponse> preloadModules() {
+        StringBuilder modules = new StringBuilder();
+        for (String module : this.preloadModules.split(",")) {
+            if (!module.trim().isEmpty()) {
+                modules.append(modules.length() > 0 ? "," : "").append('\'').append(module.trim().replace("'", "''")).append('\'');
+            }
+        }
+        if (modules.length() == 0) {
+            return null;
+        }
+        CompletableFuture<PowerShellResponse> preload = getResponse(sendCommand("Import-Module -Name " + modules, null, null));
+        preload.thenAccept(response -> {
+            if (response.isError() || !response.isSuccess()) {
+                logger.log(Level.WARNING, "Could not preload PowerShell modules " + modules + ": "
+                        + (response.isTimeout() ? "timeout" : response.getErrorOutput()));
+            }
+        });
+        return preload;
+    }
 
-        return this;
+    // Destroys the process of the session and all its descendants. The commands waiting for its output fail immediately
+    private void destroyProcess() {
+        destroyProcess(this.p, this.pid, this.commandProcessor, this.errorProcessor, this.readerTask, this.errorReaderTask);
+    }
+
+    // Destroys a console which is not used by the session
+    private static void destroyConsole(Console console) {
+        destroyProcess(console.process, console.pid, console.commandProcessor, console.errorProcessor,
+                console.readerTask, console.errorReaderTask);
+    }
+
+    private static void destroyProcess(Process process, long pid, PowerShellCommandProcessor commandProcessor,
+                                       PowerShellCommandProcessor errorProcessor, Future<?> readerTask, Future<?> errorReaderTask) {
+        //The commands do not wait for the end of the output, which never comes if a descendant survives keeping it open
+        commandProcessor.close();
+        errorProcessor.close();
+        PowerShellProcesses.destroyTree(process, pid);
+        //For the same reason, the readers are interrupted, which closes the channels they read
+        if (readerTask != null) {
+            readerTask.cancel(true);
+        }
+        if (errorReaderTask != null) {
+            errorReaderTask.cancel(true);
+        }
+    }
+
+    // Checks that the process is alive and, if no command is running, that it answers a ping in time. If the running
+    // command already finished in timeout or was cancelled, checks that it finishes in time instead, as a ping would
+    // wait for it. Otherwise the process is restarted
+    private void checkHealth() {
+        if (this.closed) {
+            return;
+        }
+        Process process;
+        PowerShellCommandFrame ping = null;
+        synchronized (this.commandLock) {
+            //Skipped while the process is being restarted
+            if (this.restarting) {
+                return;
+            }
+            process = this.p;
+            if (!process.isAlive()) {
+                requestRestart(process, "PowerShell process is not alive");
+                return;
+            }
+
+            //The ping is only sent if it is the first command, so it never waits for other commands
+            PowerShellCommandFrame running = this.commandProcessor.getRunning();
+            if (running == null) {
+                ping = sendCommand("", null, null);
+                this.commandWriter.flush();
+            } else if (running.getDiscardedElapsedNanos() > TimeUnit.MILLISECONDS.toNanos(this.healthCheckTimeout)) {
+                requestRestart(process, "PowerShell is still running a command " + this.healthCheckTimeout
+                        + " ms after it finished in timeout or was cancelled");
+                return;
+            }
+        }
+        if (ping != null) {
+            CompletableFuture<String> pingResult = ping.getResult();
+            this.threadpool.schedule(() -> {
+                synchronized (this.commandLock) {
+                    if (!pingResult.isDone()) {
+                        requestRestart(process, "PowerShell did not answer in " + this.healthCheckTimeout + " ms");
+                    }
+                }
+            }, this.healthCheckTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Replaces the process by a new one with the same configuration, unless it was already replaced or is being
+    // replaced. From now on, the commands are queued until the new process is ready, while the ones sent to the
+    // broken process fail immediately. It has to be called holding the lock of the writer
+    private void requestRestart(Process process, String reason) {
+        if (this.closed || this.restarting || process != this.p) {
+            return;
+        }
+        this.restarting = true;
+        try {
+            this.taskExecutor.execute(() -> restartProcess(reason));
+        } catch (RejectedExecutionException ex) {
+            //The session is being closed
+            this.restarting = false;
+        }
+    }
+
+    // Destroys the process and launches the new one, which is installed once it answers its probe. It runs without
+    // the lock of the writer, so the commands sent meanwhile are queued instead of waiting for the new process
+    private void restartProcess(String reason) {
+        logger.log(Level.WARNING, "Restarting PowerShell session. " + reason);
+        //No other restart can replace the process until this one is finished
+        destroyProcess();
+        //Functions defined in the old process are lost
+        this.scriptCache.clear();
+        this.metrics.sessionRestarted();
+        startNewProcess();
+    }
+
+    // Launches the process which replaces the destroyed one, which is installed once it answers its probe
+    private void startNewProcess() {
+        if (this.closed) {
+            return;
+        }
+        Console console;
+        ScheduledFuture<?> startupTimeout;
+        try {
+            console = launchConsole();
+        } catch (PowerShellNotAvailableException ex) {
+            restartFailed(ex);
+            return;
+        }
+        try {
+            startupTimeout = this.threadpool.schedule(() -> console.probe.fail(new TimeoutException(
+                    "PowerShell console was not ready after " + this.startupWait + " ms")), this.startupWait, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            destroyConsole(console);
+            restartFailed(new PowerShellNotAvailableException("PowerShell session is closed", ex));
+            return;
+        }
+        console.probe.getResult().whenComplete((output, ex) -> {
+            startupTimeout.cancel(false);
+            //Not done by the thread reading the output, which could not read it while the commands are written
+            try {
+                this.taskExecutor.execute(() -> restartReady(console, output, ex));
+            } catch (RejectedExecutionException rex) {
+                destroyConsole(console);
+            }
+        });
+    }
+
+    // Installs the restarted console once it answered its probe, unless the session was closed meanwhile
+    private void restartReady(Console console, String probeOutput, Throwable ex) {
+        if (ex != null) {
+            String exitCodeMessage = getExitCodeMessage(console.process);
+            destroyConsole(console);
+            restartFailed(new PowerShellNotAvailableException(
+                    "PowerShell console did not start" + exitCodeMessage, ex));
+            return;
+        }
+        if (console.pid < 0) {
+            console.pid = parsePID(probeOutput);
+        }
+        synchronized (this.commandLock) {
+            if (!this.closed) {
+                installConsole(console);
+                return;
+            }
+        }
+        destroyConsole(console);
+    }
+
+    // Called when the new process could not be started. The session keeps restarting, so the commands are still queued
+    // until their maxWait, and the process is launched again after a delay
+    private void restartFailed(PowerShellNotAvailableException ex) {
+        synchronized (this.commandLock) {
+            if (this.closed) {
+                return;
+            }
+            //The commands which finished in timeout while waiting are not kept until the next attempt
+            Iterator<PowerShellCommandFrame> pending = this.pendingCommands.keySet().iterator();
+            while (pending.hasNext()) {
+                PowerShellCommandFrame frame = pending.next();
+                if (frame.isDiscarded()) {
+                    frame.fail(ex);
+                    pending.remove();
+                }
+            }
+        }
+        logger.log(Level.SEVERE, "Could not restart PowerShell session. It will be tried again in "
+                + RESTART_RETRY_DELAY + " ms", ex);
+        try {
+            this.threadpool.schedule(() -> {
+                try {
+                    this.taskExecutor.execute(this::startNewProcess);
+                } catch (RejectedExecutionException rex) {
+                    //The session is being closed
+                }
+            }, RESTART_RETRY_DELAY, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException rex) {
+            //The session is being closed
+        }
+    }
+
+    // Fails the commands waiting for a restart. It has to be called holding the lock of the writer
+    private void failPendingCommands(Throwable cause) {
+        for (PowerShellCommandFrame frame : this.pendingCommands.keySet()) {
+            frame.fail(cause);
+        }
+        this.pendingCommands.clear();
+    }
+
+    private static String getExitCodeMessage(Process process) {
+        try {
+            return process.waitFor(1, TimeUnit.SECONDS) ? ". Errorcode:" + process.exitValue() : "";
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return "";
+        }
     }
 
 
     /**
      * Execute a PowerShell command.
      * <p>
-     * This method launch a thread which will be executed in the already created
-     * PowerShell console context
+     * The command is sent to the already created PowerShell console context followed by
+     * a unique end marker, so its output is read exactly until the command is finished
      *
      * @param command the command to call. Ex: dir
      * @return PowerShellResponse the information returned by powerShell
      */
     public PowerShellResponse executeCommand(String command) {
-        String commandOutput = "";
-        boolean isError = false;
-        boolean timeout = false;
+        return waitResponse(executeCommandAsync(command));
+    }
 
+    /**
+     * Execute a PowerShell command without blocking the calling thread.
+     * <p>
+     * The returned future is completed by the session once the command is finished, or with a
+     * timeout response if it runs more than the configured maxWait or if it waits more than maxWait
+     * for the previous commands of the session to finish. Actions chained to
+     * the future may be run by the thread reading the session output, so they should
+     * not block (use the async variants of CompletableFuture methods otherwise)
+     * <p>
+     * The command can be cancelled using the cancel method of the future. Its output is then read
+     * until its end and discarded, so the next commands of the session get their own output.
+     * If restartOnCancel is enabled and the command is already running, the process is restarted
+     * to stop it
+     *
+     * @param command the command to call. Ex: dir
+     * @return CompletableFuture with the information returned by powerShell
+     */
+    public CompletableFuture<PowerShellResponse> executeCommandAsync(String command) {
+        if (this.coalesceCommands) {
+            return this.coalescer.execute(command, cmd -> executeCommandAsync(cmd, null));
+        }
+        return executeCommandAsync(command, null);
+    }
+
+    /**
+     * Execute a PowerShell command pushing each line of its output to the given consumer as soon
+     * as it is read, so the output is never kept in memory.
+     * <p>
+     * The consumer is called from the thread reading the session output: while it is busy, PowerShell
+     * output is not read, which naturally slows down the command instead of accumulating its output.
+     * The returned response does not contain any output. If the consumer throws an exception, it does not
+     * receive the rest of the output and the response is an error carrying the exception
+     *
+     * @param command      the command to call. Ex: dir
+     * @param lineConsumer receives each line of the command output
+     * @return PowerShellResponse the information returned by powerShell
+     */
+    public PowerShellResponse executeCommandStreaming(String command, Consumer<String> lineConsumer) {
+        if (lineConsumer == null) {
+            throw new IllegalArgumentException("Line consumer cannot be null");
+        }
+        return waitResponse(executeCommandAsync(command, lineConsumer));
+    }
+
+    /**
+     * Execute a PowerShell command converting each object of its output into a plain Java object.
+     * <p>
+     * Every object of the pipeline is converted by PowerShell to compressed JSON and parsed as soon
+     * as it is read, so the objects can be processed while the command is still running and the
+     * whole output is never kept in memory. JSON objects are converted into {@link Map}, arrays into
+     * {@link List}, numbers into {@link Long} or {@link Double}, and strings and booleans into
+     * {@link String} and {@link Boolean}. Properties are converted up to two levels deep (the
+     * <i>-Depth</i> of ConvertTo-Json): deeper objects are received as the string PowerShell makes of them.
+     * <p>
+     * Only the lines of output carrying an object are parsed. Any other line written by the command,
+     * like the ones of Write-Host or the warnings, is added to the error output of the response.
+     * <p>
+     * As with {@link #executeCommandStreaming(String, Consumer)}, the consumer is called from the thread
+     * reading the session output and the returned response does not contain any output. If an object
+     * cannot be parsed, the response is an error carrying the parsing exception
+     *
+     * @param command        the command to call. Ex: Get-Service
+     * @param objectConsumer receives each object returned by the command
+     * @return PowerShellResponse the information returned by powerShell
+     */
+    public PowerShellResponse executeCommandAsJson(String command, Consumer<Object> objectConsumer) {
+        if (objectConsumer == null) {
+            throw new IllegalArgumentException("Object consumer cannot be null");
+        }
+        return waitResponse(executeCommandAsync(". { " + command + " } | ForEach-Object { '" + OBJECT_TAG
+                        + "' + ($_ | ConvertTo-Json -Compress -Depth " + JSON_DEPTH + ") }",
+                line -> {
+                    if (!line.trim().isEmpty()) {
+                        objectConsumer.accept(PowerShellJsonParser.parse(line));
+                    }
+                }, OBJECT_TAG));
+    }
+
+    /**
+     * Execute a PowerShell command receiving each object of its output without any loss of information.
+     * <p>
+     * Every object of the pipeline is serialized by PowerShell as CLIXML (the format of Export-Clixml)
+     * and deserialized as soon as it is read, keeping the type of its properties: numbers, booleans,
+     * dates, nested objects... Objects are received as {@link PowerShellObject}, collections as
+     * {@link List}, dictionaries as {@link Map} and primitive values as their Java equivalent.
+     * Properties are serialized up to two levels deep.
+     * <p>
+     * Only the lines of output carrying an object are deserialized. Any other line written by the command,
+     * like the ones of Write-Host or the warnings, is added to the error output of the response.
+     * <p>
+     * As with {@link #executeCommandStreaming(String, Consumer)}, the consumer is called from the thread
+     * reading the session output and the returned response does not contain any output. If an object
+     * cannot be deserialized, the response is an error carrying the parsing exception
+     *
+     * @param command        the command to call. Ex: Get-Service
+     * @param objectConsumer receives each object returned by the command
+     * @return PowerShellResponse the information returned by powerShell
+     */
+    public PowerShellResponse executeCommandAsClixml(String command, Consumer<Object> objectConsumer) {
+        if (objectConsumer == null) {
+            throw new IllegalArgumentException("Object consumer cannot be null");
+        }
+        //Each object is sent encoded in base64 so its CLIXML fits in a single line of output
+        return waitResponse(executeCommandAsync(". { " + command + " } | ForEach-Object { '" + OBJECT_TAG + "' + "
+                        + "[System.Convert]::ToBase64String([System.Text.Encoding]::UTF8.GetBytes("
+                        + "[System.Management.Automation.PSSerializer]::Serialize($_, " + CLIXML_DEPTH + "))) }",
+                line -> {
+                    if (!line.trim().isEmpty()) {
+                        objectConsumer.accept(PowerShellClixmlParser.parse(
+                                new String(Base64.getDecoder().decode(line.trim()), StandardCharsets.UTF_8)));
+                    }
+                }, OBJECT_TAG));
+    }
+
+    // Sends the command and completes the response when its output is read or when it finishes in timeout
+    private CompletableFuture<PowerShellResponse> executeCommandAsync(String command, Consumer<String> lineConsumer) {
+        return executeCommandAsync(command, lineConsumer, null);
+    }
+
+    // Sends the command pushing to the consumer only the lines of output starting with the tag, if any
+    private CompletableFuture<PowerShellResponse> executeCommandAsync(String command, Consumer<String> lineConsumer,
+                                                                      String outputTag) {
         checkState();
 
-        PowerShellCommandProcessor commandProcessor = new PowerShellCommandProcessor("standard", p.getInputStream(),
-                this.waitPause, this.scriptMode);
-        Future<String> result = threadpool.submit(commandProcessor);
+        PowerShellCommandFrame frame;
+        synchronized (this.commandLock) {
+            frame = sendCommand(command, lineConsumer, outputTag);
+            this.commandWriter.flush();
+        }
 
-        // Launch command
-        commandWriter.println(command);
+        return getResponse(frame);
+    }
 
-        try {
-            if (!result.isDone()) {
-                try {
-                    commandOutput = result.get(maxWait, TimeUnit.MILLISECONDS);
-                } catch (TimeoutException timeoutEx) {
-                    timeout = true;
-                    isError = true;
-                    //Interrupt command after timeout
-                    result.cancel(true);
+    /**
+     * Execute several PowerShell commands in a single round-trip.
+     * <p>
+     * All the commands are sent at once to the PowerShell console, each one followed by its
+     * end marker, and the output is split back into one response per command. As for single
+     * commands, each command of the batch finishes in timeout if it runs more than the configured
+     * maxWait, or if it waits more than maxWait for the previous ones
+     *
+     * @param commands the commands to call, in execution order
+     * @return the responses of the commands, in the same order
+     */
+    public List<PowerShellResponse> executeBatch(List<String> commands) {
+        checkState();
+
+        List<PowerShellCommandFrame> frames = new ArrayList<>(commands.size());
+        synchronized (this.commandLock) {
+            for (String command : commands) {
+                frames.add(sendCommand(command, null, null));
+            }
+            this.commandWriter.flush();
+        }
+
+        List<CompletableFuture<PowerShellResponse>> responses = new ArrayList<>(frames.size());
+        for (PowerShellCommandFrame frame : frames) {
+            responses.add(getResponse(frame));
+        }
+
+        List<PowerShellResponse> result = new ArrayList<>(responses.size());
+        for (CompletableFuture<PowerShellResponse> response : responses) {
+            result.add(waitResponse(response));
+        }
+        return result;
+    }
+
+    // Builds the response of the command from its frame, completing it in timeout if it takes too long
+    private CompletableFuture<PowerShellResponse> getResponse(PowerShellCommandFrame frame) {
+        CompletableFuture<PowerShellResponse> response = new CompletableFuture<>();
+        frame.getResult().whenComplete((commandOutput, ex) -> {
+            //The response already finished in timeout or was cancelled, so the command is not reported again
+            if (!response.isDone() && !frame.isDiscarded()) {
+                response.complete(createResponse(commandOutput, ex, frame));
+            }
+        });
+
+        //Complete with a timeout response if the command takes too long. The wait starts again when the command
+        //is started, so a slow command does not make the commands queued behind it finish in timeout
+        Runnable timeout = () -> {
+            if (response.complete(new PowerShellResponse(true, "", true))) {
+                this.metrics.commandTimedOut();
+                stopCommand(frame);
+            }
+        };
+        ScheduledFuture<?> queueTimeoutTask = this.threadpool.schedule(timeout, this.maxWait, TimeUnit.MILLISECONDS);
+        CompletableFuture<ScheduledFuture<?>> timeoutTask = frame.getStarted().thenApply(started -> {
+            queueTimeoutTask.cancel(false);
+            return response.isDone() ? null : this.threadpool.schedule(timeout, this.maxWait, TimeUnit.MILLISECONDS);
+        });
+        response.whenComplete((res, ex) -> {
+            queueTimeoutTask.cancel(false);
+            timeoutTask.thenAccept(task -> {
+                if (task != null) {
+                    task.cancel(false);
                 }
+            });
+            if (response.isCancelled()) {
+                this.metrics.commandCancelled();
+                stopCommand(frame);
             }
+        });
+
+        return response;
+    }
+
+    // Called when the response of a command was completed before its output: the output will be drained until
+    // the end marker of the command, which keeps the next commands in sync, and then ignored. If enabled, the
+    // process is restarted when the command is running, as PowerShell cannot be interrupted through its input.
+    // The restart runs in the background, never in the thread which sends the next command
+    private void stopCommand(PowerShellCommandFrame frame) {
+        frame.discard();
+        if (this.restartOnCancel && !this.closed) {
+            synchronized (this.commandLock) {
+                //From now on the commands are queued for the new process, so none is sent to this one
+                if (this.commandProcessor.isRunning(frame)) {
+                    requestRestart(this.p, "Stopping a cancelled command");
+                }
+            }
+        }
+    }
+
+    // Builds the response of a command once its frame is finished, reporting it to the metrics
+    private PowerShellResponse createResponse(String commandOutput, Throwable ex, PowerShellCommandFrame frame) {
+        if (ex != null) {
+            logger.log(Level.SEVERE,
+                    "Unexpected error when processing PowerShell command", ex);
+            this.metrics.commandFailed();
+            return new PowerShellResponse(true, "", false);
+        }
+        if (frame.getConsumerFailure() != null) {
+            //The output could not be processed, so the command fails with the error of the consumer
+            this.metrics.commandFailed();
+            this.lastCommandSucceeded = false;
+            return new PowerShellResponse(frame.getConsumerFailure(), frame.getErrorOutput());
+        }
+        this.metrics.commandCompleted(frame.getQueueWaitNanos(), frame.getExecutionNanos(),
+                frame.getOutputLines(), frame.getOutputChars());
+        PowerShellResponse commandResponse = createResponse(commandOutput, frame);
+        this.lastCommandSucceeded = commandResponse.isSuccess();
+        return commandResponse;
+    }
+
+    // Builds the response of a finished command from the status written after its end marker: $?, $LASTEXITCODE
+    // and the elapsed ticks of 100 ns, separated by semicolons. Ex: True;;1234
+    private static PowerShellResponse createResponse(String commandOutput, PowerShellCommandFrame frame) {
+        String[] status = frame.getStatus().split(";", -1);
+        boolean success = Boolean.parseBoolean(status[0]);
+        Integer lastExitCode = null;
+        Duration elapsedTime = Duration.ZERO;
+        try {
+            if (status.length > 1 && !status[1].isEmpty()) {
+                lastExitCode = Integer.valueOf(status[1]);
+            }
+            if (status.length > 2 && !status[2].isEmpty()) {
+                elapsedTime = Duration.ofNanos(Long.parseLong(status[2]) * 100);
+            }
+        } catch (NumberFormatException ex) {
+            logger.log(Level.WARNING, "Unexpected status of PowerShell command: " + frame.getStatus());
+        }
+        return new PowerShellResponse(false, commandOutput, false, frame.getErrorOutput(), success, lastExitCode, elapsedTime);
+    }
+
+    // Waits for the response of a command sent asynchronously
+    private PowerShellResponse waitResponse(CompletableFuture<PowerShellResponse> response) {
+        try {
+            return response.get();
         } catch (InterruptedException | ExecutionException ex) {
             logger.log(Level.SEVERE,
                     "Unexpected error when processing PowerShell command", ex);
-            isError = true;
-        } finally {
-            // issue #2. Close and cancel processors/threads - Thanks to r4lly
-            // for helping me here
-            commandProcessor.close();
+            return new PowerShellResponse(true, "", false);
+        }
+    }
+
+    // Writes the command followed by the end markers of the standard and error outputs, registering first the frame
+    // that will receive its output. The marker of the standard output carries the status of the command ($?,
+    // $LASTEXITCODE and its execution time, measured with a stopwatch started just before the command).
+    // While the process is restarted, the command is kept until the new process is ready.
+    // It has to be called holding the lock of the writer, which has to be flushed afterwards
+    private PowerShellCommandFrame sendCommand(String command, Consumer<String> lineConsumer, String outputTag) {
+        PowerShellCommandFrame frame = createFrame(lineConsumer, outputTag);
+        if (this.restarting) {
+            this.pendingCommands.put(frame, command);
+        } else {
+            writeCommand(frame, command);
         }
+        this.lastFrame = frame;
+
+        return frame;
+    }
+
+    private PowerShellCommandFrame createFrame(Consumer<String> lineConsumer, String outputTag) {
+        return new PowerShellCommandFrame(END_COMMAND_STRING + this.commandCount.incrementAndGet() + "-",
+                lineConsumer, outputTag);
+    }
+
+    // Writes the command to the current process. It has to be called holding the lock of the writer
+    private void writeCommand(PowerShellCommandFrame frame, String command) {
+        this.commandProcessor.enqueue(frame);
+        this.errorProcessor.enqueue(frame);
+        writeCommand(this.commandWriter, frame, command);
+    }
 
-        return new PowerShellResponse(isError, commandOutput, timeout);
+    private static void writeCommand(PrintWriter writer, PowerShellCommandFrame frame, String command) {
+        writer.write("$jpowershellWatch = [Diagnostics.Stopwatch]::StartNew()");
+        writer.write(LINE_SEPARATOR);
+        writer.write(command);
+        writer.write(LINE_SEPARATOR);
+        writer.write("$jpowershellSuccess = $?; $jpowershellWatch.Stop(); [Console]::Error.WriteLine(\"" + frame.getEndMarker() + "--\"); "
+                + "Write-Output \"" + frame.getEndMarker() + "$jpowershellSuccess;$LASTEXITCODE;$($jpowershellWatch.Elapsed.Ticks)--\"");
+        writer.write(LINE_SEPARATOR);
     }
 
     /**
@@ -268,12 +1150,15 @@ public class PowerShell implements AutoCloseable {
     }
 
     /**
-     * Indicates if the last executed command finished in error
+     * Indicates if the last executed command finished in error.
+     * <p>
+     * The status of each command is captured together with its output, so it is also available
+     * in {@link PowerShellResponse#isSuccess()} without calling this method
      *
      * @return boolean
      */
     public boolean isLastCommandInError() {
-        return !Boolean.valueOf(executeCommand("$?").getCommandOutput());
+        return !this.lastCommandSucceeded;
     }
 
     /**
@@ -297,16 +1182,41 @@ public class PowerShell implements AutoCloseable {
      */
     @SuppressWarnings("WeakerAccess")
     public PowerShellResponse executeScript(String scriptPath, String params) {
-        try (BufferedReader srcReader = new BufferedReader(new FileReader(new File(scriptPath)))) {
-            return executeScript(srcReader, params);
+        return waitResponse(executeScriptAsync(scriptPath, params));
+    }
+
+    /**
+     * Executed the provided PowerShell script in PowerShell console without blocking
+     * the calling thread.
+     *
+     * @param scriptPath the full path of the script
+     * @param params     the parameters of the script
+     * @return CompletableFuture with the output of the command
+     * @see #executeCommandAsync(String)
+     */
+    public CompletableFuture<PowerShellResponse> executeScriptAsync(String scriptPath, String params) {
+        File scriptFile = new File(scriptPath);
+        if (this.cacheScripts) {
+            //If the file did not change, there is no need to read it again
+            String functionName = this.scriptCache.getDefinedFunction(scriptFile);
+            if (functionName != null) {
+                return executeCommandAsync(functionName + " " + params);
+            }
+        }
+
+        try (BufferedReader srcReader = new BufferedReader(new FileReader(scriptFile))) {
+            if (this.cacheScripts) {
+                return executeCachedScriptAsync(srcReader, params, scriptFile);
+            }
+            return executeScriptAsync(srcReader, params);
         } catch (FileNotFoundException fnfex) {
             logger.log(Level.SEVERE,
                     "Unexpected error when processing PowerShell script: file not found", fnfex);
-            return new PowerShellResponse(true, "Wrong script path: " + scriptPath, false);
+            return CompletableFuture.completedFuture(new PowerShellResponse(true, "Wrong script path: " + scriptPath, false));
         } catch (IOException ioe) {
             logger.log(Level.SEVERE,
                     "Unexpected error when processing PowerShell script", ioe);
-            return new PowerShellResponse(true, "IO error reading: " + scriptPath, false);
+            return CompletableFuture.completedFuture(new PowerShellResponse(true, "IO error reading: " + scriptPath, false));
         }
     }
 
@@ -330,25 +1240,98 @@ public class PowerShell implements AutoCloseable {
      * @return response with the output of the command
      */
     public PowerShellResponse executeScript(BufferedReader srcReader, String params) {
-        PowerShellResponse response;
-        if (srcReader != null) {
+        return waitResponse(executeScriptAsync(srcReader, params));
+    }
+
+    /**
+     * Execute the provided PowerShell script in PowerShell console without blocking
+     * the calling thread.
+     *
+     * @param srcReader the script as BufferedReader (when loading File from jar)
+     * @param params    the parameters of the script
+     * @return CompletableFuture with the output of the command
+     * @see #executeCommandAsync(String)
+     */
+    public CompletableFuture<PowerShellResponse> executeScriptAsync(BufferedReader srcReader, String params) {
+        CompletableFuture<PowerShellResponse> response;
+        if (srcReader != null && this.cacheScripts) {
+            response = executeCachedScriptAsync(srcReader, params, null);
+        } else if (srcReader != null && this.inMemoryScripts) {
+            String script = readScript(srcReader);
+            if (script != null) {
+                response = executeCommandAsync("& " + createScriptBlock(script) + " " + params);
+            } else {
+                response = CompletableFuture.completedFuture(new PowerShellResponse(true, "Cannot read script!", false));
+            }
+        } else if (srcReader != null) {
             File tmpFile = createWriteTempFile(srcReader);
             if (tmpFile != null) {
-                this.scriptMode = true;
-                response = executeCommand(tmpFile.getAbsolutePath() + " " + params);
-                this.scriptMode = false;
-                tmpFile.delete();
+                response = executeCommandAsync(tmpFile.getAbsolutePath() + " " + params);
+                response.whenComplete((res, ex) -> tmpFile.delete());
             } else {
-                response = new PowerShellResponse(true, "Cannot create temp script file!", false);
+                response = CompletableFuture.completedFuture(new PowerShellResponse(true, "Cannot create temp script file!", false));
             }
         } else {
             logger.log(Level.SEVERE, "Script buffered reader is null!");
-            response = new PowerShellResponse(true, "Script buffered reader is null!", false);
+            response = CompletableFuture.completedFuture(new PowerShellResponse(true, "Script buffered reader is null!", false));
+        }
+
+        return response;
+    }
+
+    // Executes the script through a function of the session, defining it first if it is not defined yet
+    private CompletableFuture<PowerShellResponse> executeCachedScriptAsync(BufferedReader srcReader, String params,
+                                                                         File scriptFile) {
+        String script = readScript(srcReader);
+        if (script == null) {
+            return CompletableFuture.completedFuture(new PowerShellResponse(true, "Cannot read script!", false));
+        }
+
+        String functionName = this.scriptCache.register(script, scriptFile);
+        if (this.scriptCache.isDefined(functionName)) {
+            return executeCommandAsync(functionName + " " + params);
         }
 
+        CompletableFuture<PowerShellResponse> response = executeCommandAsync("Set-Item -Path function:global:" + functionName
+                + " -Value " + createScriptBlock(script) + "; " + functionName + " " + params);
+        response.thenAccept(res -> {
+            if (!res.isError()) {
+                this.scriptCache.setDefined(functionName);
+            }
+        });
         return response;
     }
 
+    // Reads the whole script from srcReader
+    private String readScript(BufferedReader srcReader) {
+        StringBuilder script = new StringBuilder();
+        try {
+            String line;
+            while ((line = srcReader.readLine()) != null) {
+                script.append(line).append('\n');
+            }
+        } catch (IOException ioex) {
+            logger.log(Level.SEVERE,
+                    "Unexpected error while reading PowerShell script", ioex);
+            return null;
+        }
+
+        //Remove the BOM of the script, if any
+        if (script.length() > 0 && script.charAt(0) == '\uFEFF') {
+            script.deleteCharAt(0);
+        }
+
+        return script.toString();
+    }
+
+    // Builds an expression which creates a script block from the script, so it can be used without any file.
+    // The script is encoded in base64 so it can be sent as a single line whatever its content
+    private static String createScriptBlock(String script) {
+        String encodedScript = Base64.getEncoder().encodeToString(script.getBytes(StandardCharsets.UTF_8));
+        return "([scriptblock]::Create([System.Text.Encoding]::UTF8.GetString([System.Convert]::FromBase64String('"
+                + encodedScript + "'))))";
+    }
+
     // Writes a temp powershell script file based on the srcReader
     private File createWriteTempFile(BufferedReader srcReader) {
 
@@ -367,9 +1350,6 @@ public class PowerShell implements AutoCloseable {
                 tmpWriter.write(line);
                 tmpWriter.newLine();
             }
-
-            // Add end script line
-            tmpWriter.write("Write-Output \"" + END_SCRIPT_STRING + "\"");
         } catch (IOException ioex) {
             logger.log(Level.SEVERE,
                     "Unexpected error while writing temporary PowerShell script", ioex);
@@ -393,52 +1373,71 @@ public class PowerShell implements AutoCloseable {
     @Override
     public void close() {
         if (!this.closed) {
+            //No more restarts from now on
+            this.closed = true;
             try {
-                Future<String> closeTask = threadpool.submit(() -> {
+                if (this.healthCheckTask != null) {
+                    this.healthCheckTask.cancel(false);
+                }
+                //A restart in progress installs no process from now on
+                synchronized (this.commandLock) {
+                    failPendingCommands(new IOException("PowerShell session was closed before the command was sent"));
                     commandWriter.println("exit");
+                }
+                Future<String> closeTask = taskExecutor.submit(() -> {
                     p.waitFor();
                     return "OK";
                 });
-                if (!closeAndWait(closeTask) && this.pid > 0) {
-                    //If it can be closed, force kill the process
+                if (!closeAndWait(closeTask)) {
+                    //If it can be closed, force kill the process and the programs launched by it
                     Logger.getLogger(PowerShell.class.getName()).log(Level.INFO,
                             "Forcing PowerShell to close. PID: " + this.pid);
-                    try {
-                        Runtime.getRuntime().exec("taskkill.exe /PID " + pid + " /F /T");
-                        this.closed = true;
-                    } catch (IOException e) {
-                        Logger.getLogger(PowerShell.class.getName()).log(Level.SEVERE,
-                                "Unexpected error while killing powershell process", e);
-                    }
+                    destroyProcess();
+                    this.metrics.sessionKilled();
+                    this.closed = true;
                 }
             } catch (InterruptedException | ExecutionException ex) {
                 logger.log(Level.SEVERE,
                         "Unexpected error when when closing PowerShell", ex);
             } finally {
+                this.commandProcessor.close();
+                this.errorProcessor.close();
                 commandWriter.close();
                 try {
                     if (p.isAlive()) {
                         p.getInputStream().close();
+                        p.getErrorStream().close();
                     }
                 } catch (IOException ex) {
                     logger.log(Level.SEVERE,
                             "Unexpected error when when closing streams", ex);
                 }
-                if (this.threadpool != null) {
-                    try {
-                        this.threadpool.shutdownNow();
-                        this.threadpool.awaitTermination(5, TimeUnit.SECONDS);
-                    } catch (InterruptedException ex) {
-                        logger.log(Level.SEVERE,
-                                "Unexpected error when when shutting down thread pool", ex);
-                    }
-
-                }
+                stopThreads();
                 this.closed = true;
             }
         }
     }
 
+    // Stops the reader of the output and shuts down the executors owned by the session.
+    // Shared executors, either given by the user or used for timeouts with virtual threads, are kept running
+    private void stopThreads() {
+        if (this.readerTask != null) {
+            this.readerTask.cancel(true);
+        }
+        if (this.errorReaderTask != null) {
+            this.errorReaderTask.cancel(true);
+        }
+        if (this.taskExecutor != null && this.taskExecutor != this.sharedExecutor) {
+            try {
+                this.taskExecutor.shutdownNow();
+                this.taskExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                logger.log(Level.SEVERE,
+                        "Unexpected error when when shutting down thread pool", ex);
+            }
+        }
+    }
+
     private boolean closeAndWait(Future<String> task) throws InterruptedException, ExecutionException {
         boolean closed = true;
         if (!task.isDone()) {
@@ -455,6 +1454,18 @@ public class PowerShell implements AutoCloseable {
         return closed;
     }
 
+    // Gets a future completed once all the commands sent to the session are finished, including those
+    // which already got a timeout or were cancelled and whose output is still being drained
+    CompletableFuture<?> whenCommandsFinished() {
+        PowerShellCommandFrame frame = this.lastFrame;
+        return frame != null ? frame.getResult() : CompletableFuture.completedFuture(null);
+    }
+
+    //Checks if the session is still usable: not closed and with the PowerShell process running or being restarted
+    boolean isAlive() {
+        return !this.closed && (this.restarting || this.p.isAlive());
+    }
+
     //Checks if PowerShell have been already closed
     private void checkState() {
         if (this.closed) {
@@ -462,10 +1473,8 @@ public class PowerShell implements AutoCloseable {
         }
     }
 
-    //Use Powershell command '$PID' in order to recover the process identifier
-    private long getPID() {
-        String commandOutput = executeCommand("$pid").getCommandOutput();
-
+    //Recover the process identifier from the output of Powershell command '$PID'
+    private static long parsePID(String commandOutput) {
         //Remove all non numeric characters
         commandOutput = commandOutput.replaceAll("\\D", "");
 
@@ -476,6 +1485,18 @@ public class PowerShell implements AutoCloseable {
         return -1;
     }
 
+    //Charset used by the console: the one of the code page set in Windows or UTF-8 for PowerShell Core in other systems
+    private static Charset getConsoleCharset(String codePage) {
+        if (OSDetector.isWindows()) {
+            Optional<Charset> charset = PowerShellCodepage.getCharsetByIdentifier(codePage);
+            if (charset.isPresent()) {
+                return charset.get();
+            }
+            logger.log(Level.WARNING, "Charset of code page " + codePage + " not supported. Using UTF-8");
+        }
+        return StandardCharsets.UTF_8;
+    }
+
     //Return the temp folder File object or null if the path does not exist
     private File getTempFolder(String tempPath) {
         if (tempPath != null) {
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parser of the CLIXML format produced by PowerShell serialization (Export-Clixml, PSSerializer).<p>
+ * Primitive values are converted into their Java equivalent, collections into {@link List},
+ * dictionaries into {@link Map} and any other object into a {@link PowerShellObject}.
+ *
+ * @author Javier Garcia Alonso
+ */
+final class PowerShellClixmlParser {
+
+    private static final Pattern ESCAPED_CHAR = Pattern.compile("_x([0-9A-Fa-f]{4})_");
+
+    //Document builders are not thread safe, but creating them is expensive
+    private static final ThreadLocal<DocumentBuilder> documentBuilder = ThreadLocal.withInitial(() -> {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setExpandEntityReferences(false);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            builder.setErrorHandler(new DefaultHandler());
+            return builder;
+        } catch (ParserConfigurationException ex) {
+            throw new IllegalStateException("Cannot create XML parser", ex);
+        }
+    });
+
+    //Objects and type names already read, which can be referenced later in the same document
+    private final Map<String, Object> objectsByRefId = new HashMap<>();
+    private final Map<String, List<String>> typeNamesByRefId = new HashMap<>();
+
+    private PowerShellClixmlParser() {
+    }
+
+    /**
+     * Parses a CLIXML document containing one serialized object
+     *
+     * @param clixml the CLIXML text
+     * @return the deserialized object
+     * @throws IllegalArgumentException if the text is not valid CLIXML
+     */
+    static Object parse(String clixml) {
+        Document document;
+        try {
+            DocumentBuilder builder = documentBuilder.get();
+            document = builder.parse(new InputSource(new StringReader(clixml)));
+        } catch (SAXException | IOException ex) {
+            throw new IllegalArgumentException("Invalid CLIXML: " + ex.getMessage(), ex);
+        }
+
+        Element root = document.getDocumentElement();
+        if (!"Objs".equals(root.getTagName())) {
+            throw new IllegalArgumentException("Invalid CLIXML: unexpected root element " + root.getTagName());
+        }
+
+        List<Element> objects = childElements(root);
+        if (objects.isEmpty()) {
+            return null;
+        }
+        return new PowerShellClixmlParser().readValue(objects.get(0));
+    }
+
+    private Object readValue(Element element) {
+        String text = element.getTextContent();
+        switch (element.getTagName()) {
+            case "Nil":
+                return null;
+            case "S":
+            case "URI":
+            case "Version":
+            case "XD":
+            case "SBK":
+                return unescape(text);
+            case "C":
+                return (char) Integer.parseInt(text);
+            case "B":
+                return Boolean.valueOf(text);
+            case "By":
+            case "U16":
+            case "I32":
+                return Integer.valueOf(text);
+            case "SB":
+                return Byte.valueOf(text);
+            case "I16":
+                return Short.valueOf(text);
+            case "U32":
+            case "I64":
+                return Long.valueOf(text);
+            case "U64":
+                return new BigInteger(text);
+            case "Sg":
+                return Float.valueOf(text);
+            case "Db":
+                return Double.valueOf(text);
+            case "D":
+                return new BigDecimal(text);
+            case "G":
+                return UUID.fromString(text);
+            case "BA":
+                return Base64.getDecoder().decode(text.trim());
+            case "DT":
+                return readDate(text);
+            case "TS":
+                return readDuration(text);
+            case "Ref":
+                return this.objectsByRefId.get(element.getAttribute("RefId"));
+            case "Obj":
+                return readObject(element);
+            default:
+                return unescape(text);
+        }
+    }
+
+    private Object readObject(Element element) {
+        PowerShellObject object = new PowerShellObject();
+        String refId = element.getAttribute("RefId");
+        if (!refId.isEmpty()) {
+            this.objectsByRefId.put(refId, object);
+        }
+
+        Object collection = null;
+        boolean hasProperties = false;
+        for (Element child : childElements(element)) {
+            switch (child.getTagName()) {
+                case "TN":
+                    List<String> typeNames = new ArrayList<>();
+                    for (Element typeName : childElements(child)) {
+                        typeNames.add(unescape(typeName.getTextContent()));
+                    }
+                    this.typeNamesByRefId.put(child.getAttribute("RefId"), typeNames);
+                    object.typeNames().addAll(typeNames);
+                    break;
+                case "TNRef":
+                    object.typeNames().addAll(this.typeNamesByRefId.getOrDefault(child.getAttribute("RefId"),
+                            Collections.emptyList()));
+                    break;
+                case "ToString":
+                    object.setStringValue(unescape(child.getTextContent()));
+                    break;
+                case "Props":
+                case "MS":
+                    hasProperties = true;
+                    for (Element property : childElements(child)) {
+                        object.properties().put(unescape(property.getAttribute("N")), readValue(property));
+                    }
+                    break;
+                case "LST":
+                case "IE":
+                case "ST":
+                case "QUE":
+                    collection = readList(child);
+                    break;
+                case "DCT":
+                    collection = readDictionary(child);
+                    break;
+                default:
+                    object.setValue(readValue(child));
+            }
+        }
+
+        //Plain collections are returned directly
+        if (collection != null && !hasProperties) {
+            if (!refId.isEmpty()) {
+                this.objectsByRefId.put(refId, collection);
+            }
+            return collection;
+        }
+        if (collection != null) {
+            object.setValue(collection);
+        }
+        return object;
+    }
+
+    private List<Object> readList(Element element) {
+        List<Object> list = new ArrayList<>();
+        for (Element item : childElements(element)) {
+            list.add(readValue(item));
+        }
+        return list;
+    }
+
+    private Map<Object, Object> readDictionary(Element element) {
+        Map<Object, Object> dictionary = new LinkedHashMap<>();
+        for (Element entry : childElements(element)) {
+            Object key = null;
+            Object value = null;
+            for (Element part : childElements(entry)) {
+                if ("Key".equals(part.getAttribute("N"))) {
+                    key = readValue(part);
+                } else if ("Value".equals(part.getAttribute("N"))) {
+                    value = readValue(part);
+                }
+            }
+            dictionary.put(key, value);
+        }
+        return dictionary;
+    }
+
+    //Dates are returned as OffsetDateTime if they have offset or LocalDateTime otherwise
+    private static Object readDate(String text) {
+        try {
+            return OffsetDateTime.parse(text);
+        } catch (DateTimeParseException noOffset) {
+            try {
+                return LocalDateTime.parse(text);
+            } catch (DateTimeParseException ex) {
+                return text;
+            }
+        }
+    }
+
+    private static Object readDuration(String text) {
+        try {
+            return Duration.parse(text);
+        } catch (DateTimeParseException ex) {
+            return text;
+        }
+    }
+
+    //CLIXML encodes some characters as _xHHHH_
+    private static String unescape(String text) {
+        if (text.indexOf("_x") < 0) {
+            return text;
+        }
+        Matcher matcher = ESCAPED_CHAR.matcher(text);
+        StringBuffer unescaped = new StringBuffer();
+        while (matcher.find()) {
+            matcher.appendReplacement(unescaped,
+                    Matcher.quoteReplacement(String.valueOf((char) Integer.parseInt(matcher.group(1), 16))));
+        }
+        matcher.appendTail(unescaped);
+        return unescaped.toString();
+    }
+
+    private static List<Element> childElements(Element element) {
+        List<Element> children = new ArrayList<>();
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                children.add((Element) node);
+            }
+        }
+        return children;
+    }
+}
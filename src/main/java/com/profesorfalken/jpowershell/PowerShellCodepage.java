@@ -13,9 +13,13 @@
  */
 package com.profesorfalken.jpowershell;
 
+import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.TreeMap;
 
 /**
  * Enum that contains possible CodePage values needed to correctly set the encoding in a windows console session<br>
@@ -25,8 +29,15 @@ import java.util.Map.Entry;
  */
 class PowerShellCodepage {
 
+    private static final String DEFAULT_IDENTIFIER = "65001";
+
     private static final Map<String, String> codePages = new HashMap<>();
 
+    //Reverse indexes built once at class load: lowercase name or alias to identifier and resolved charsets
+    private static final Map<String, String> identifiersByName;
+    private static final Map<Charset, String> identifiersByCharset;
+    private static final Map<String, Charset> charsetsByIdentifier;
+
     static {
         codePages.put("37", "IBM037");
         codePages.put("437", "IBM437");
@@ -182,6 +193,54 @@ class PowerShellCodepage {
         codePages.put("65001", "utf-8");
     }
 
+    static {
+        Map<String, String> byName = new HashMap<>();
+        Map<Charset, String> byCharset = new HashMap<>();
+        Map<String, Charset> charsets = new HashMap<>();
+
+        //Iterate in identifier order so that the lowest identifier wins when several share a name or charset
+        Map<Integer, String> ordered = new TreeMap<>();
+        for (Map.Entry<String, String> codePage : codePages.entrySet()) {
+            ordered.put(Integer.valueOf(codePage.getKey()), codePage.getValue());
+        }
+
+        for (Map.Entry<Integer, String> codePage : ordered.entrySet()) {
+            String identifier = codePage.getKey().toString();
+            String name = codePage.getValue();
+            if (name.isEmpty()) {
+                continue;
+            }
+            byName.putIfAbsent(name.toLowerCase(Locale.ROOT), identifier);
+
+            Charset charset = resolveCharset(name);
+            if (charset != null) {
+                charsets.put(identifier, charset);
+                byCharset.putIfAbsent(charset, identifier);
+            }
+        }
+
+        //Aliases never override a name explicitly listed in the table
+        for (Map.Entry<Charset, String> entry : byCharset.entrySet()) {
+            byName.putIfAbsent(entry.getKey().name().toLowerCase(Locale.ROOT), entry.getValue());
+            for (String alias : entry.getKey().aliases()) {
+                byName.putIfAbsent(alias.toLowerCase(Locale.ROOT), entry.getValue());
+            }
+        }
+
+        identifiersByName = Collections.unmodifiableMap(byName);
+        identifiersByCharset = Collections.unmodifiableMap(byCharset);
+        charsetsByIdentifier = Collections.unmodifiableMap(charsets);
+    }
+
+    //Return the Java charset for a code page name or null if it is not supported by this JVM
+    private static Charset resolveCharset(String name) {
+        try {
+            return Charset.isSupported(name) ? Charset.forName(name) : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
     /**
      * Get the encoding value from CodePage
      *
@@ -193,21 +252,46 @@ class PowerShellCodepage {
     }
 
     /**
-     * Get the CodePage code from encoding value
+     * Get the CodePage code from encoding value.
+     * <p>
+     * The name is matched ignoring case against the code page names and the aliases of their charsets
      *
      * @param cpName the codepage name
      * @return String the identifier
      */
     public static String getIdentifierByCodePageName(String cpName) {
         if (cpName != null) {
-            for (Entry<String, String> codePage : codePages.entrySet()) {
-                if (codePage.getValue().toLowerCase().equals(cpName.toLowerCase())) {
-                    return codePage.getKey();
-                }
+            String identifier = identifiersByName.get(cpName.toLowerCase(Locale.ROOT));
+            if (identifier != null) {
+                return identifier;
+            }
+            Charset charset = resolveCharset(cpName);
+            if (charset != null) {
+                return getIdentifierByCharset(charset).orElse(DEFAULT_IDENTIFIER);
             }
         }
         //Default UTF-8
-        return "65001";
+        return DEFAULT_IDENTIFIER;
+    }
+
+    /**
+     * Get the Java charset of a CodePage code
+     *
+     * @param cpIdentifier the identifier
+     * @return Optional the charset or empty if unknown or not supported by this JVM
+     */
+    public static Optional<Charset> getCharsetByIdentifier(String cpIdentifier) {
+        return cpIdentifier == null ? Optional.empty() : Optional.ofNullable(charsetsByIdentifier.get(cpIdentifier));
+    }
+
+    /**
+     * Get the CodePage code of a Java charset
+     *
+     * @param charset the charset
+     * @return Optional the identifier or empty if no code page uses this charset
+     */
+    public static Optional<String> getIdentifierByCharset(Charset charset) {
+        return charset == null ? Optional.empty() : Optional.ofNullable(identifiersByCharset.get(charset));
     }
 
 }
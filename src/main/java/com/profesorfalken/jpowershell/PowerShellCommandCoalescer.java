@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Shares the execution of identical commands requested at the same time.<p>
+ * While a command is running, the calls of the same command get its response instead of
+ * executing it again. Once it is finished, the next call executes it again, so nothing is cached.
+ * The running command is only cancelled when all the calls waiting for it are cancelled.
+ *
+ * @author Javier Garcia Alonso
+ */
+class PowerShellCommandCoalescer {
+
+    private final ConcurrentMap<String, PowerShellSharedCommand> running = new ConcurrentHashMap<>();
+
+    /**
+     * Executes the command or joins its running execution
+     *
+     * @param command  the command to call
+     * @param executor function which executes the command asynchronously
+     * @return CompletableFuture with the response of the command
+     */
+    CompletableFuture<PowerShellResponse> execute(String command,
+                                                  Function<String, CompletableFuture<PowerShellResponse>> executor) {
+        while (true) {
+            PowerShellSharedCommand shared = new PowerShellSharedCommand();
+            PowerShellSharedCommand current = this.running.putIfAbsent(command, shared);
+            if (current != null) {
+                CompletableFuture<PowerShellResponse> response = current.join();
+                if (response != null) {
+                    return response;
+                }
+                //All the calls of the running command cancelled it, so it is executed again
+                this.running.remove(command, current);
+                continue;
+            }
+
+            CompletableFuture<PowerShellResponse> response = shared.join();
+            try {
+                //Removed before completing, so the calls made from now on execute the command again
+                shared.start(executor.apply(command), (res, ex) -> this.running.remove(command, shared));
+            } catch (RuntimeException ex) {
+                this.running.remove(command, shared);
+                shared.fail(ex);
+                throw ex;
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Output of a command sent to the PowerShell console.<p>
+ * The frame is filled by the {@link PowerShellCommandProcessor} of the standard output and by the one
+ * of the error output, each one until the end marker of the command is read in its stream. Its result
+ * is collected using a CompletableFuture, completed once both streams are finished.<p>
+ * If the frame has a line consumer, the lines are pushed to it as soon as they are read instead
+ * of being kept in memory. If the consumer fails, it does not receive any other line and the rest
+ * of the output is ignored. When the frame also has an output tag, only the lines starting with it
+ * are pushed to the consumer, without the tag: any other line, like the ones written to the host or
+ * the warnings, is added to the error output.
+ *
+ * @author Javier Garcia Alonso
+ */
+class PowerShellCommandFrame {
+
+    private static final String CRLF = "\r\n";
+
+    private final String endMarker;
+
+    private final StringBuilder output = new StringBuilder();
+    private final StringBuilder errorOutput = new StringBuilder();
+    //Untagged lines of the standard output, only written by the thread reading it
+    private final StringBuilder untaggedOutput = new StringBuilder();
+
+    private final Consumer<String> lineConsumer;
+    private final String outputTag;
+
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+    private final CompletableFuture<Void> started = new CompletableFuture<>();
+
+    //Streams still to be finished: output and errors
+    private final AtomicInteger pendingStreams = new AtomicInteger(2);
+    private String commandOutput;
+    private String status;
+    private RuntimeException consumerFailure;
+
+    private volatile boolean discarded = false;
+    private long discardedNanos;
+
+    //Measures of the command
+    private final long createdNanos = System.nanoTime();
+    private long queueWaitNanos;
+    private long executionNanos;
+    private long outputLines;
+    private long outputChars;
+
+    /**
+     * Constructor that takes the marker that ends the command
+     *
+     * @param endMarker    the start of the line written by PowerShell once the command is finished
+     * @param lineConsumer receives each line of output. If null, the output is kept in the frame
+     */
+    PowerShellCommandFrame(String endMarker, Consumer<String> lineConsumer) {
+        this(endMarker, lineConsumer, null);
+    }
+
+    /**
+     * Constructor that takes the marker that ends the command and the tag of the lines to push to the consumer
+     *
+     * @param endMarker    the start of the line written by PowerShell once the command is finished
+     * @param lineConsumer receives each line of output. If null, the output is kept in the frame
+     * @param outputTag    start of the lines pushed to the consumer. If null, all the lines are pushed
+     */
+    PowerShellCommandFrame(String endMarker, Consumer<String> lineConsumer, String outputTag) {
+        this.endMarker = endMarker;
+        this.lineConsumer = lineConsumer;
+        this.outputTag = outputTag;
+    }
+
+    String getEndMarker() {
+        return this.endMarker;
+    }
+
+    /**
+     * Output of the command, available once its end marker is read
+     *
+     * @return CompletableFuture with the output of the command
+     */
+    CompletableFuture<String> getResult() {
+        return this.result;
+    }
+
+    /**
+     * Start of the command, completed once the previous commands are finished and PowerShell runs this one
+     *
+     * @return CompletableFuture completed when the command starts
+     */
+    CompletableFuture<Void> getStarted() {
+        return this.started;
+    }
+
+    //Called by the processor of the output when the command is the first one waiting for its output
+    void start() {
+        this.started.complete(null);
+    }
+
+    //Keeps the line unless the frame was discarded or its consumer failed. In that case, output is only drained until the marker
+    void appendLine(CharSequence line) {
+        if (this.discarded) {
+            //The output kept before the frame was discarded is released by the thread which writes it
+            this.output.setLength(0);
+            this.untaggedOutput.setLength(0);
+            return;
+        }
+        if (this.consumerFailure != null) {
+            return;
+        }
+        if (this.outputTag != null && !startsWith(line, this.outputTag)) {
+            this.untaggedOutput.append(line).append(CRLF);
+            return;
+        }
+
+        this.outputLines++;
+        this.outputChars += line.length();
+
+        if (this.lineConsumer != null) {
+            try {
+                this.lineConsumer.accept(this.outputTag != null
+                        ? line.subSequence(this.outputTag.length(), line.length()).toString() : line.toString());
+            } catch (RuntimeException ex) {
+                this.consumerFailure = ex;
+            }
+        } else {
+            this.output.append(line).append(CRLF);
+        }
+    }
+
+    //Keeps the line of error output unless the frame was discarded
+    void appendErrorLine(CharSequence line) {
+        if (this.discarded) {
+            this.errorOutput.setLength(0);
+        } else {
+            this.errorOutput.append(line).append(CRLF);
+        }
+    }
+
+    //Called by the processor of the output once the end marker is read, with the time the previous command finished
+    //and the status written by PowerShell after the marker
+    void finish(long previousFinishedNanos, long finishedNanos, String status) {
+        long startedNanos = Math.max(this.createdNanos, previousFinishedNanos);
+        this.queueWaitNanos = startedNanos - this.createdNanos;
+        this.executionNanos = finishedNanos - startedNanos;
+        this.status = status;
+        if (this.discarded) {
+            this.output.setLength(0);
+            this.untaggedOutput.setLength(0);
+        }
+        this.commandOutput = trimEnd(this.output);
+        streamFinished();
+    }
+
+    //Called by the processor of the error output once the end marker is read
+    void finishErrors() {
+        if (this.discarded) {
+            this.errorOutput.setLength(0);
+        }
+        streamFinished();
+    }
+
+    private void streamFinished() {
+        if (this.pendingStreams.decrementAndGet() == 0) {
+            this.result.complete(this.commandOutput);
+        }
+    }
+
+    private static boolean startsWith(CharSequence line, String prefix) {
+        if (line.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Remove last CRLF from result
+    private static String trimEnd(StringBuilder text) {
+        int end = text.length();
+        while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    //Called by the processor when the output cannot be read anymore
+    void fail(Throwable cause) {
+        this.result.completeExceptionally(cause);
+    }
+
+    /**
+     * Error output of the command, followed by the untagged lines of its output, available once the result is completed
+     *
+     * @return the error output
+     */
+    String getErrorOutput() {
+        if (this.untaggedOutput.length() > 0) {
+            return trimEnd(new StringBuilder(this.errorOutput).append(this.untaggedOutput));
+        }
+        return trimEnd(this.errorOutput);
+    }
+
+    /**
+     * Status written by PowerShell after the end marker, available once the result is completed
+     *
+     * @return the status
+     */
+    String getStatus() {
+        return this.status;
+    }
+
+    /**
+     * Exception thrown by the line consumer, available once the result is completed
+     *
+     * @return the exception or null if the consumer did not fail
+     */
+    RuntimeException getConsumerFailure() {
+        return this.consumerFailure;
+    }
+
+    long getQueueWaitNanos() {
+        return this.queueWaitNanos;
+    }
+
+    long getExecutionNanos() {
+        return this.executionNanos;
+    }
+
+    long getOutputLines() {
+        return this.outputLines;
+    }
+
+    long getOutputChars() {
+        return this.outputChars;
+    }
+
+    /**
+     * Checks if the output of the command is discarded because its response finished in timeout or was cancelled
+     *
+     * @return true if the frame was discarded
+     */
+    boolean isDiscarded() {
+        return this.discarded;
+    }
+
+    /**
+     * Time elapsed since the frame was discarded
+     *
+     * @return the elapsed time in nanoseconds, or 0 if the frame was not discarded
+     */
+    long getDiscardedElapsedNanos() {
+        return this.discarded ? System.nanoTime() - this.discardedNanos : 0;
+    }
+
+    /**
+     * Discards the output of the command, which will be read and ignored until its end marker.
+     * It can be called from any thread, as the output already kept is released by the threads reading it
+     */
+    void discard() {
+        if (!this.discarded) {
+            this.discardedNanos = System.nanoTime();
+        }
+        this.discarded = true;
+    }
+}
@@ -15,128 +15,262 @@
  */
 package com.profesorfalken.jpowershell;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.concurrent.Callable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Processor used to send commands to PowerShell console.<p>
- * It works as an independent thread and its results are collected using the Future interface.
+ * Processor used to read the output of the commands sent to PowerShell console.<p>
+ * It works as an independent thread which lives as long as the session. It continuously reads the
+ * standard or the error output of the console and dispatches it to the frames of the commands,
+ * in the same order they were sent.<p>
+ * The output is read as bytes through a channel and decoded with the charset of the console, reusing
+ * the same buffers for the whole session. Each read blocks until the console writes something, so an
+ * idle session does not consume any CPU.
  *
  * @author Javier Garcia Alonso
  */
-class PowerShellCommandProcessor implements Callable<String> {
+class PowerShellCommandProcessor implements Runnable {
 
-    private static final String CRLF = "\r\n";
+    static final int DEFAULT_BUFFER_SIZE = 65536;
 
-    private final BufferedReader reader;
+    //End of the line written after the end marker and the status of the command
+    private static final String END_MARKER_SUFFIX = "--";
 
-    private boolean closed = false;
+    private final ReadableByteChannel channel;
 
-    private final boolean scriptMode;
+    private final CharsetDecoder decoder;
 
-    private final int waitPause;
+    private final boolean errorStream;
+
+    //Buffers reused to read and decode all the output
+    private final ByteBuffer bytes;
+    private final CharBuffer chars;
+    private StringBuilder line = new StringBuilder();
+    //Capacity kept by the line between lines. A longer line, like a big JSON object, does not keep its memory
+    private final int maxLineCapacity;
+
+    private final BlockingQueue<PowerShellCommandFrame> frames = new LinkedBlockingQueue<>();
+
+    private volatile boolean closed = false;
+
+    private long lastFinishedNanos = 0;
 
     /**
-     * Constructor that takes the output and the input of the PowerShell session
+     * Constructor that takes the output of the PowerShell session and the size of the read buffer
      *
-     * @param name        the name of the CommandProcessor
-     * @param inputStream the stream needed to read the command output
-     * @param waitPause   long the wait pause in milliseconds
-     * @param scriptMode  boolean indicates if the command executes a script
+     * @param inputStream the stream needed to read the commands output
+     * @param charset     the charset used by the console to write the output
+     * @param bufferSize  the number of bytes that can be read at once
+     * @param errorStream true if the stream is the error output of the session
      */
-    public PowerShellCommandProcessor(String name, InputStream inputStream, int waitPause, boolean scriptMode) {
-        this.reader = new BufferedReader(new InputStreamReader(
-                inputStream));
-        this.waitPause = waitPause;
-        this.scriptMode = scriptMode;
+    public PowerShellCommandProcessor(InputStream inputStream, Charset charset, int bufferSize, boolean errorStream) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        this.errorStream = errorStream;
+        this.channel = Channels.newChannel(inputStream);
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        //Heap buffers, as the decoders are faster with backing arrays and the channel copies from the stream anyway
+        this.bytes = ByteBuffer.allocate(bufferSize);
+        this.chars = CharBuffer.allocate(bufferSize);
+        this.maxLineCapacity = 2 * bufferSize;
     }
 
     /**
-     * Calls the command and returns its output
+     * Adds the frame of a command. It must be called before sending the command to the console
      *
-     * @return String output of call
-     * @throws InterruptedException error when reading data
+     * @param frame the frame which will receive the command output
      */
-    public String call() throws InterruptedException {
-        StringBuilder powerShellOutput = new StringBuilder();
+    public void enqueue(PowerShellCommandFrame frame) {
+        this.frames.add(frame);
+        //If the output was closed meanwhile, the frame would never be completed
+        if (this.closed && this.frames.remove(frame)) {
+            frame.fail(new IOException("PowerShell output is already closed"));
+        } else {
+            startFirst();
+        }
+    }
 
-        try {
-            if (startReading()) {
-                readData(powerShellOutput);
-            }
-        } catch (IOException ioe) {
-            Logger.getLogger(PowerShell.class.getName()).log(Level.SEVERE, "Unexpected error reading PowerShell output", ioe);
-            return ioe.getMessage();
+    //Starts the command which is the first in the queue, as PowerShell is running it. The output
+    //decides it, as the commands of the error output can be finished later
+    private void startFirst() {
+        PowerShellCommandFrame frame;
+        if (!this.errorStream && (frame = this.frames.peek()) != null) {
+            frame.start();
         }
+    }
 
-        //Remove last CRLF from result
-        return powerShellOutput.toString().replaceAll("\\s+$", "");
+    /**
+     * Gets the command whose output is being read, which is the one PowerShell is running
+     *
+     * @return the frame of the command or null if no command is running
+     */
+    public PowerShellCommandFrame getRunning() {
+        return this.frames.peek();
     }
 
-    //Reads all data from output
-    private void readData(StringBuilder powerShellOutput) throws IOException {
-        String line;
-        while (null != (line = this.reader.readLine())) {
+    /**
+     * Checks if the output being read is the one of the given command, which means that it is running
+     *
+     * @param frame the frame of the command
+     * @return true if the command is running
+     */
+    public boolean isRunning(PowerShellCommandFrame frame) {
+        return this.frames.peek() == frame;
+    }
 
-            //In the case of script mode it finish when the last line is read
-            if (this.scriptMode) {
-                if (line.equals(PowerShell.END_SCRIPT_STRING)) {
-                    break;
-                }
+    /**
+     * Reads the output until the console is closed
+     */
+    public void run() {
+        try {
+            readData();
+        } catch (IOException ioe) {
+            if (!this.closed) {
+                Logger.getLogger(PowerShell.class.getName()).log(Level.SEVERE, "Unexpected error reading PowerShell output", ioe);
             }
+        } finally {
+            this.closed = true;
+            PowerShellCommandFrame frame;
+            while ((frame = this.frames.poll()) != null) {
+                frame.fail(new IOException("PowerShell output was closed before the end of the command"));
+            }
+        }
+    }
 
-            powerShellOutput.append(line).append(CRLF);
+    //Reads all data from output and splits it using the end marker of each command
+    private void readData() throws IOException {
+        while (this.channel.read(this.bytes) != -1) {
+            this.bytes.flip();
+            decode(false);
+            //Keep the bytes of an incomplete character for the next read
+            this.bytes.compact();
+        }
 
-            //When not in script mode, it exits when the command is finished
-            if (!this.scriptMode) {
-                try {
-                    if (this.closed || !canContinueReading()) {
-                        break;
-                    }
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(PowerShellCommandProcessor.class.getName()).log(Level.SEVERE, "Error executing command and reading result", ex);
+        this.bytes.flip();
+        decode(true);
+        while (this.decoder.flush(this.chars).isOverflow()) {
+            processChars();
+        }
+        processChars();
+        if (this.line.length() > 0) {
+            processLine();
+        }
+    }
+
+    //Decodes the available bytes, processing the characters each time the char buffer is full
+    private void decode(boolean endOfInput) {
+        CoderResult result;
+        do {
+            result = this.decoder.decode(this.bytes, this.chars, endOfInput);
+            processChars();
+        } while (result.isOverflow());
+    }
+
+    //Splits the decoded characters in lines
+    private void processChars() {
+        char[] buffer = this.chars.array();
+        int end = this.chars.position();
+        int lineStart = 0;
+        for (int i = 0; i < end; i++) {
+            if (buffer[i] == '\n') {
+                this.line.append(buffer, lineStart, i - lineStart);
+                int length = this.line.length();
+                if (length > 0 && this.line.charAt(length - 1) == '\r') {
+                    this.line.setLength(length - 1);
                 }
+                processLine();
+                lineStart = i + 1;
             }
         }
+        this.line.append(buffer, lineStart, end - lineStart);
+        this.chars.clear();
     }
 
-    //Checks when we can start reading the output. Timeout if it takes too long in order to avoid hangs
-    private boolean startReading() throws IOException, InterruptedException {
-        //If the reader is not ready, gives it some milliseconds
-        while (!this.reader.ready()) {
-            Thread.sleep(this.waitPause);
-            if (this.closed) {
-                return false;
+    //Dispatches the current line to the frame of the command being read
+    private void processLine() {
+        PowerShellCommandFrame frame = this.frames.peek();
+        if (frame == null) {
+            Logger.getLogger(PowerShell.class.getName()).log(Level.FINE, "Ignoring output of no command: {0}", this.line);
+        } else {
+            //The end line is the marker of the command, followed by its status
+            int markerIndex = endsWith(this.line, END_MARKER_SUFFIX) ? this.line.lastIndexOf(frame.getEndMarker()) : -1;
+            if (markerIndex >= 0) {
+                String status = this.line.substring(markerIndex + frame.getEndMarker().length(),
+                        this.line.length() - END_MARKER_SUFFIX.length());
+                //The marker can follow output which was not terminated by a new line
+                if (markerIndex > 0) {
+                    this.line.setLength(markerIndex);
+                    append(frame);
+                }
+                //Not just the head of the queue, which could be another frame if the processor was closed meanwhile
+                this.frames.remove(frame);
+                finish(frame, status);
+                startFirst();
+            } else {
+                append(frame);
             }
         }
-        return true;
+        if (this.line.capacity() > this.maxLineCapacity) {
+            this.line = new StringBuilder();
+        } else {
+            this.line.setLength(0);
+        }
     }
 
-    //Checks when we the reader can continue to read.
-    private boolean canContinueReading() throws IOException, InterruptedException {
-        //If the reader is not ready, gives it some milliseconds
-        //It is important to do that, because the ready method guarantees that the readline will not be blocking
-        if (!this.reader.ready()) {
-            Thread.sleep(this.waitPause);
+    private void append(PowerShellCommandFrame frame) {
+        if (this.errorStream) {
+            frame.appendErrorLine(this.line);
+        } else {
+            frame.appendLine(this.line);
         }
+    }
 
-        //If not ready yet, wait a moment to make sure it is finished
-        if (!this.reader.ready()) {
-            Thread.sleep(50);
+    private void finish(PowerShellCommandFrame frame, String status) {
+        if (this.errorStream) {
+            frame.finishErrors();
+        } else {
+            long finishedNanos = System.nanoTime();
+            frame.finish(this.lastFinishedNanos, finishedNanos, status);
+            this.lastFinishedNanos = finishedNanos;
         }
+    }
 
-        return this.reader.ready();
+    private static boolean endsWith(CharSequence text, String suffix) {
+        int offset = text.length() - suffix.length();
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (text.charAt(offset + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Closes the command processor, canceling the current work if not finish
+     * Closes the command processor. The pending commands fail immediately, without waiting for the end of the output
      */
     public void close() {
         this.closed = true;
+        PowerShellCommandFrame frame;
+        while ((frame = this.frames.poll()) != null) {
+            frame.fail(new IOException("PowerShell output was closed before the end of the command"));
+        }
     }
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser used to read the objects written by PowerShell ConvertTo-Json.<p>
+ * JSON values are converted into plain Java objects: objects into {@link Map} (keeping the order of
+ * the properties), arrays into {@link List}, strings into {@link String}, numbers into {@link Long}
+ * or {@link Double}, booleans into {@link Boolean} and null into null.
+ *
+ * @author Javier Garcia Alonso
+ */
+final class PowerShellJsonParser {
+
+    private final String json;
+    private int position = 0;
+
+    private PowerShellJsonParser(String json) {
+        this.json = json;
+    }
+
+    /**
+     * Parses a JSON value
+     *
+     * @param json the JSON text
+     * @return the value as plain Java object
+     * @throws IllegalArgumentException if the text is not valid JSON
+     */
+    static Object parse(String json) {
+        PowerShellJsonParser parser = new PowerShellJsonParser(json);
+        Object value = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.position < json.length()) {
+            throw parser.error("Unexpected content after JSON value");
+        }
+        return value;
+    }
+
+    private Object readValue() {
+        skipWhitespace();
+        if (this.position >= this.json.length()) {
+            throw error("Unexpected end of JSON");
+        }
+
+        char c = this.json.charAt(this.position);
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                readKeyword("true");
+                return Boolean.TRUE;
+            case 'f':
+                readKeyword("false");
+                return Boolean.FALSE;
+            case 'n':
+                readKeyword("null");
+                return null;
+            default:
+                return readNumber();
+        }
+    }
+
+    private Map<String, Object> readObject() {
+        Map<String, Object> object = new LinkedHashMap<>();
+        this.position++;
+        skipWhitespace();
+        if (consume('}')) {
+            return object;
+        }
+
+        do {
+            skipWhitespace();
+            if (!peek('"')) {
+                throw error("Expected property name");
+            }
+            String name = readString();
+            skipWhitespace();
+            expect(':');
+            object.put(name, readValue());
+            skipWhitespace();
+        } while (consume(','));
+
+        expect('}');
+        return object;
+    }
+
+    private List<Object> readArray() {
+        List<Object> array = new ArrayList<>();
+        this.position++;
+        skipWhitespace();
+        if (consume(']')) {
+            return array;
+        }
+
+        do {
+            array.add(readValue());
+            skipWhitespace();
+        } while (consume(','));
+
+        expect(']');
+        return array;
+    }
+
+    private String readString() {
+        StringBuilder value = new StringBuilder();
+        this.position++;
+        while (this.position < this.json.length()) {
+            char c = this.json.charAt(this.position++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+
+            if (this.position >= this.json.length()) {
+                break;
+            }
+            char escaped = this.json.charAt(this.position++);
+            switch (escaped) {
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (this.position + 4 > this.json.length()) {
+                        throw error("Invalid unicode escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(this.json.substring(this.position, this.position + 4), 16));
+                    } catch (NumberFormatException nfe) {
+                        throw error("Invalid unicode escape");
+                    }
+                    this.position += 4;
+                    break;
+                default:
+                    value.append(escaped);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Number readNumber() {
+        int start = this.position;
+        boolean decimal = false;
+        while (this.position < this.json.length()) {
+            char c = this.json.charAt(this.position);
+            if (c == '.' || c == 'e' || c == 'E') {
+                decimal = true;
+            } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+                break;
+            }
+            this.position++;
+        }
+
+        String number = this.json.substring(start, this.position);
+        try {
+            if (!decimal) {
+                try {
+                    return Long.valueOf(number);
+                } catch (NumberFormatException tooBig) {
+                    //Fall back to double
+                }
+            }
+            return Double.valueOf(number);
+        } catch (NumberFormatException nfe) {
+            this.position = start;
+            throw error("Unexpected character");
+        }
+    }
+
+    private void readKeyword(String keyword) {
+        if (!this.json.startsWith(keyword, this.position)) {
+            throw error("Unexpected character");
+        }
+        this.position += keyword.length();
+    }
+
+    private void skipWhitespace() {
+        while (this.position < this.json.length() && Character.isWhitespace(this.json.charAt(this.position))) {
+            this.position++;
+        }
+    }
+
+    private boolean peek(char c) {
+        return this.position < this.json.length() && this.json.charAt(this.position) == c;
+    }
+
+    private boolean consume(char c) {
+        if (peek(c)) {
+            this.position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!consume(c)) {
+            throw error("Expected '" + c + "'");
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + this.position + " of JSON: " + this.json);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+/**
+ * Receives the measures of what PowerShell sessions are doing. It can be set using
+ * {@link PowerShell#metrics(PowerShellMetrics)} or {@link PowerShellPool#metrics(PowerShellMetrics)}.<p>
+ * The methods are called from the threads of the sessions, so implementations must be thread safe
+ * and must not block. All the methods do nothing by default.
+ * {@link PowerShellMetricsRecorder} is an implementation which keeps the measures in memory and
+ * exposes them through JMX.
+ *
+ * @author Javier Garcia Alonso
+ */
+public interface PowerShellMetrics {
+
+    /**
+     * Called when the output of a command has been completely read
+     *
+     * @param queueWaitNanos time the command waited for the previous commands of the session to finish
+     * @param executionNanos time from the start of the command until the end of its output
+     * @param outputLines    number of lines of output
+     * @param outputChars    number of characters of output
+     */
+    default void commandCompleted(long queueWaitNanos, long executionNanos, long outputLines, long outputChars) {
+    }
+
+    /**
+     * Called when a command finished in timeout
+     */
+    default void commandTimedOut() {
+    }
+
+    /**
+     * Called when a command was cancelled by the caller before it finished
+     */
+    default void commandCancelled() {
+    }
+
+    /**
+     * Called when the output of a command could not be read
+     */
+    default void commandFailed() {
+    }
+
+    /**
+     * Called when a session could not be closed and its process had to be killed
+     */
+    default void sessionKilled() {
+    }
+
+    /**
+     * Called when the process of a session has been replaced by a new one
+     */
+    default void sessionRestarted() {
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of {@link PowerShellMetrics} which keeps counters and latency histograms in memory.<p>
+ * The same recorder can be shared by several sessions. Its values can be read directly or through JMX
+ * once registered using {@link #registerMBean(String)}.
+ * Histograms use power of two buckets of microseconds, so percentiles are approximated by the upper
+ * bound of their bucket.
+ *
+ * @author Javier Garcia Alonso
+ */
+public class PowerShellMetricsRecorder implements PowerShellMetrics, PowerShellMetricsRecorderMBean {
+
+    //Declare logger
+    private static final Logger logger = Logger.getLogger(PowerShellMetricsRecorder.class.getName());
+
+    private final LongAdder timedOutCommands = new LongAdder();
+    private final LongAdder cancelledCommands = new LongAdder();
+    private final LongAdder failedCommands = new LongAdder();
+    private final LongAdder killedSessions = new LongAdder();
+    private final LongAdder restartedSessions = new LongAdder();
+    private final LongAdder outputLines = new LongAdder();
+    private final LongAdder outputChars = new LongAdder();
+
+    private final Histogram latency = new Histogram();
+    private final Histogram queueWait = new Histogram();
+
+    @Override
+    public void commandCompleted(long queueWaitNanos, long executionNanos, long outputLines, long outputChars) {
+        this.queueWait.record(queueWaitNanos);
+        this.latency.record(queueWaitNanos + executionNanos);
+        this.outputLines.add(outputLines);
+        this.outputChars.add(outputChars);
+    }
+
+    @Override
+    public void commandTimedOut() {
+        this.timedOutCommands.increment();
+    }
+
+    @Override
+    public void commandCancelled() {
+        this.cancelledCommands.increment();
+    }
+
+    @Override
+    public void commandFailed() {
+        this.failedCommands.increment();
+    }
+
+    @Override
+    public void sessionKilled() {
+        this.killedSessions.increment();
+    }
+
+    @Override
+    public void sessionRestarted() {
+        this.restartedSessions.increment();
+    }
+
+    @Override
+    public long getCompletedCommands() {
+        return this.latency.getCount();
+    }
+
+    @Override
+    public long getTimedOutCommands() {
+        return this.timedOutCommands.sum();
+    }
+
+    @Override
+    public long getCancelledCommands() {
+        return this.cancelledCommands.sum();
+    }
+
+    @Override
+    public long getFailedCommands() {
+        return this.failedCommands.sum();
+    }
+
+    @Override
+    public long getKilledSessions() {
+        return this.killedSessions.sum();
+    }
+
+    @Override
+    public long getRestartedSessions() {
+        return this.restartedSessions.sum();
+    }
+
+    @Override
+    public long getOutputLines() {
+        return this.outputLines.sum();
+    }
+
+    @Override
+    public long getOutputChars() {
+        return this.outputChars.sum();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        return this.latency.getMeanMillis();
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+        return this.latency.getMaxMillis();
+    }
+
+    /**
+     * Approximated latency, from the moment the command is sent until its output is read, under
+     * which the given percentage of the commands completed
+     *
+     * @param percentile value between 0 and 100. Ex: 99
+     * @return latency in milliseconds
+     */
+    @Override
+    public double getLatencyPercentileMillis(double percentile) {
+        return this.latency.getPercentileMillis(percentile);
+    }
+
+    @Override
+    public double getMeanQueueWaitMillis() {
+        return this.queueWait.getMeanMillis();
+    }
+
+    @Override
+    public double getMaxQueueWaitMillis() {
+        return this.queueWait.getMaxMillis();
+    }
+
+    /**
+     * Approximated time waited for the previous commands of the session under which the given
+     * percentage of the commands started
+     *
+     * @param percentile value between 0 and 100. Ex: 99
+     * @return wait time in milliseconds
+     */
+    @Override
+    public double getQueueWaitPercentileMillis(double percentile) {
+        return this.queueWait.getPercentileMillis(percentile);
+    }
+
+    /**
+     * Sets all the measures to zero
+     */
+    @Override
+    public void reset() {
+        this.timedOutCommands.reset();
+        this.cancelledCommands.reset();
+        this.failedCommands.reset();
+        this.killedSessions.reset();
+        this.restartedSessions.reset();
+        this.outputLines.reset();
+        this.outputChars.reset();
+        this.latency.reset();
+        this.queueWait.reset();
+    }
+
+    /**
+     * Registers the recorder in the platform MBean server
+     *
+     * @param name the name of the recorder, used in its object name. Ex: default
+     * @return instance to chain
+     */
+    public PowerShellMetricsRecorder registerMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("com.profesorfalken.jpowershell:type=PowerShellMetrics,name=" + ObjectName.quote(name)));
+        } catch (JMException ex) {
+            logger.log(Level.SEVERE, "Cannot register PowerShell metrics in JMX", ex);
+        }
+        return this;
+    }
+
+    //Histogram of durations using power of two buckets of microseconds
+    private static class Histogram {
+
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0));
+            this.buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(micros));
+            this.count.increment();
+            this.totalNanos.add(nanos);
+            this.maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        long getCount() {
+            return this.count.sum();
+        }
+
+        double getMeanMillis() {
+            long currentCount = this.count.sum();
+            return currentCount == 0 ? 0 : toMillis(this.totalNanos.sum()) / currentCount;
+        }
+
+        double getMaxMillis() {
+            return toMillis(this.maxNanos.get());
+        }
+
+        double getPercentileMillis(double percentile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = this.buckets.get(i);
+                total += snapshot[i];
+            }
+
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && seen > 0) {
+                    //Upper bound of the bucket, without exceeding the max recorded value
+                    long upperMicros = i == 0 ? 0 : (1L << i) - 1;
+                    return Math.min(upperMicros / 1000.0, getMaxMillis());
+                }
+            }
+            return 0;
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                this.buckets.set(i, 0);
+            }
+            this.count.reset();
+            this.totalNanos.reset();
+            this.maxNanos.set(0);
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / 1_000_000.0;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+/**
+ * JMX view of the measures kept by {@link PowerShellMetricsRecorder}
+ *
+ * @author Javier Garcia Alonso
+ */
+public interface PowerShellMetricsRecorderMBean {
+
+    long getCompletedCommands();
+
+    long getTimedOutCommands();
+
+    long getCancelledCommands();
+
+    long getFailedCommands();
+
+    long getKilledSessions();
+
+    long getRestartedSessions();
+
+    long getOutputLines();
+
+    long getOutputChars();
+
+    double getMeanLatencyMillis();
+
+    double getMaxLatencyMillis();
+
+    double getLatencyPercentileMillis(double percentile);
+
+    double getMeanQueueWaitMillis();
+
+    double getMaxQueueWaitMillis();
+
+    double getQueueWaitPercentileMillis(double percentile);
+
+    void reset();
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+import java.util.*;
+
+/**
+ * Object deserialized from the CLIXML representation of a PowerShell object.<p>
+ * It keeps the type names of the original object, its string representation, its properties and,
+ * for objects wrapping a single value like enumerations, that value. Property values are
+ * converted into Java types: strings, numbers, booleans, dates (java.time), collections
+ * ({@link List} and {@link Map}) or nested {@link PowerShellObject}.
+ *
+ * @author Javier Garcia Alonso
+ */
+public class PowerShellObject {
+
+    private final List<String> typeNames = new ArrayList<>();
+    private final Map<String, Object> properties = new LinkedHashMap<>();
+    private String stringValue;
+    private Object value;
+
+    PowerShellObject() {
+    }
+
+    /**
+     * Type names of the original object, from the most to the least specific one.
+     * Ex: System.ServiceProcess.ServiceController, System.ComponentModel.Component, System.Object
+     *
+     * @return list of type names
+     */
+    public List<String> getTypeNames() {
+        return Collections.unmodifiableList(this.typeNames);
+    }
+
+    /**
+     * Gets the value of a property of the object
+     *
+     * @param name the name of the property
+     * @return the value or null if the property does not exist
+     */
+    public Object getProperty(String name) {
+        return this.properties.get(name);
+    }
+
+    /**
+     * All the properties of the object, in the order they were serialized
+     *
+     * @return map of property names and values
+     */
+    public Map<String, Object> getProperties() {
+        return Collections.unmodifiableMap(this.properties);
+    }
+
+    /**
+     * Value wrapped by the object, if any. Ex: the number of an enumeration value
+     *
+     * @return the value or null
+     */
+    public Object getValue() {
+        return this.value;
+    }
+
+    /**
+     * The string representation of the original object. If it was not serialized, the wrapped value
+     * or else the most specific type name is used instead
+     *
+     * @return String value
+     */
+    @Override
+    public String toString() {
+        if (this.stringValue != null) {
+            return this.stringValue;
+        }
+        if (this.value != null) {
+            return String.valueOf(this.value);
+        }
+        if (!this.typeNames.isEmpty()) {
+            return this.typeNames.get(0);
+        }
+        return super.toString();
+    }
+
+    List<String> typeNames() {
+        return this.typeNames;
+    }
+
+    Map<String, Object> properties() {
+        return this.properties;
+    }
+
+    void setStringValue(String stringValue) {
+        this.stringValue = stringValue;
+    }
+
+    void setValue(Object value) {
+        this.value = value;
+    }
+}
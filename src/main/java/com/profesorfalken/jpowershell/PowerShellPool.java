@@ -0,0 +1,441 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of already opened PowerShell sessions.<br>
+ * This class cannot be instantiated directly. Please use instead the method
+ * PowerShellPool.openPool() and borrow the sessions from the returned instance.
+ * <p>
+ * A {@link PowerShell} session accepts commands from several threads at the same time, but it runs
+ * them one after the other in a single PowerShell console. The pool allows to run commands in parallel:
+ * every thread borrows a session for its exclusive use, so it also keeps the state of the console
+ * (variables, current location...) for itself, and gives it back closing the returned {@link Lease},
+ * which is easily done using a try with resources.
+ * Sessions found dead are discarded and replaced in background.
+ * Sessions given back while still running commands that timed out or were cancelled are kept out of
+ * the pool until those commands finish, and replaced if they do not finish within the configured maxWait.
+ *
+ * @author Javier Garcia Alonso
+ */
+public class PowerShellPool implements AutoCloseable {
+
+    //Declare logger
+    private static final Logger logger = Logger.getLogger(PowerShellPool.class.getName());
+
+    //Pause before trying again to open a session that could not be started
+    private static final long RETRY_OPEN_DELAY = 5000;
+
+    private final int size;
+    private final String powerShellExecutablePath;
+    private Map<String, String> config = null;
+    private PowerShellMetrics metrics = null;
+    private volatile boolean coalesceCommands;
+
+    //Commands running in the pool, shared with identical commands when coalesceCommands is enabled
+    private final PowerShellCommandCoalescer coalescer = new PowerShellCommandCoalescer();
+
+    //Sessions ready to be borrowed and all the sessions owned by the pool
+    private final BlockingQueue<PowerShell> idleSessions = new LinkedBlockingQueue<>();
+    private final Set<PowerShell> sessions = ConcurrentHashMap.newKeySet();
+
+    //Sessions given back that are still running commands, kept out of the pool until they finish
+    private final Set<PowerShell> drainingSessions = ConcurrentHashMap.newKeySet();
+
+    //Thread used to replace dead sessions
+    private final ScheduledExecutorService replacer;
+
+    private volatile boolean closed = false;
+
+    // Private constructor. Instance using openPool method
+    private PowerShellPool(int size, String powerShellExecutablePath) {
+        this.size = size;
+        this.powerShellExecutablePath = powerShellExecutablePath;
+        this.coalesceCommands = Boolean.valueOf(PowerShellConfig.getConfig().getProperty("coalesceCommands"));
+        this.replacer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jpowershell-pool-replacer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a pool with the given number of PowerShell sessions, opened using
+     * the default PowerShell installation in the system.
+     *
+     * @param size number of sessions kept by the pool
+     * @return an instance of the class
+     * @throws PowerShellNotAvailableException if PowerShell is not installed in the system
+     */
+    public static PowerShellPool openPool(int size) throws PowerShellNotAvailableException {
+        return openPool(size, null);
+    }
+
+    /**
+     * Creates a pool with the given number of PowerShell sessions.<br>
+     * This method allows to define a PowersShell executable path different from default
+     *
+     * @param size                           number of sessions kept by the pool
+     * @param customPowerShellExecutablePath the path of powershell executable. If you are using
+     *                                       the default installation path, call {@link #openPool(int)} method instead
+     * @return an instance of the class
+     * @throws PowerShellNotAvailableException if PowerShell is not installed in the system
+     */
+    public static PowerShellPool openPool(int size, String customPowerShellExecutablePath)
+            throws PowerShellNotAvailableException {
+        return openPool(size, customPowerShellExecutablePath, null);
+    }
+
+    /**
+     * Creates a pool with the given number of PowerShell sessions, all of them opened using the given
+     * configuration, which is already applied while the sessions are started (see <i>startupWait</i>
+     * and <i>preloadModules</i> in {@link PowerShell#configuration(Map)})
+     *
+     * @param size                           number of sessions kept by the pool
+     * @param customPowerShellExecutablePath the path of powershell executable or null to use the default one
+     * @param config                         map with the configuration in key/value format
+     * @return an instance of the class
+     * @throws PowerShellNotAvailableException if PowerShell is not installed in the system
+     */
+    public static PowerShellPool openPool(int size, String customPowerShellExecutablePath, Map<String, String> config)
+            throws PowerShellNotAvailableException {
+        if (size < 1) {
+            throw new IllegalArgumentException("The pool must contain at least one session");
+        }
+
+        PowerShellPool pool = new PowerShellPool(size, customPowerShellExecutablePath);
+        pool.configuration(config);
+        try {
+            for (int i = 0; i < size; i++) {
+                pool.idleSessions.add(pool.openSession());
+            }
+        } catch (PowerShellNotAvailableException ex) {
+            pool.close();
+            throw ex;
+        }
+
+        return pool;
+    }
+
+    /**
+     * Allows to override jPowerShell configuration of all the sessions of the pool.
+     * <p>
+     * See {@link PowerShell#configuration(Map)} for the values that can be overridden. The values
+     * used while a session is started only apply to the sessions opened afterwards, so they have to
+     * be passed to {@link #openPool(int, String, Map)}
+     *
+     * @param config map with the configuration in key/value format
+     * @return instance to chain
+     */
+    public PowerShellPool configuration(Map<String, String> config) {
+        this.config = config;
+        this.coalesceCommands = Boolean.valueOf((config != null && config.get("coalesceCommands") != null) ? config.get("coalesceCommands")
+                : PowerShellConfig.getConfig().getProperty("coalesceCommands"));
+        for (PowerShell session : this.sessions) {
+            session.configuration(config);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the object which receives the measures of all the sessions of the pool.
+     * <p>
+     * See {@link PowerShell#metrics(PowerShellMetrics)}
+     *
+     * @param metrics the metrics receiver. Ex: a {@link PowerShellMetricsRecorder}
+     * @return instance to chain
+     */
+    public PowerShellPool metrics(PowerShellMetrics metrics) {
+        this.metrics = metrics;
+        for (PowerShell session : this.sessions) {
+            session.metrics(metrics);
+        }
+        return this;
+    }
+
+    /**
+     * Borrows a session from the pool, waiting for one to be available up to the
+     * configured maxWait.
+     *
+     * @return lease of the session. It has to be closed in order to give the session back
+     * @throws PowerShellNotAvailableException if no session became available in time
+     */
+    public Lease borrow() throws PowerShellNotAvailableException {
+        return borrow(getMaxWait(), TimeUnit.MILLISECONDS);
+    }
+
+    private long getMaxWait() {
+        return Long.valueOf((this.config != null && this.config.get("maxWait") != null) ? this.config.get("maxWait")
+                : PowerShellConfig.getConfig().getProperty("maxWait"));
+    }
+
+    /**
+     * Borrows a session from the pool, waiting for one to be available up to the given time.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the time unit of the timeout
+     * @return lease of the session. It has to be closed in order to give the session back
+     * @throws PowerShellNotAvailableException if no session became available in time
+     */
+    public Lease borrow(long timeout, TimeUnit unit) throws PowerShellNotAvailableException {
+        checkState();
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            PowerShell session;
+            while ((session = this.idleSessions.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null) {
+                if (session.isAlive()) {
+                    return new Lease(session);
+                }
+                replace(session);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new PowerShellNotAvailableException("Interrupted while waiting for a PowerShell session", ex);
+        }
+
+        throw new PowerShellNotAvailableException("No PowerShell session available in the pool");
+    }
+
+    /**
+     * Execute a PowerShell command in a session borrowed from the pool, which is given back as soon
+     * as the command is finished. The calling thread only waits for a session to be available,
+     * up to the configured maxWait.
+     * <p>
+     * If coalesceCommands is enabled, the calls of a command which is already running in the pool
+     * get its response without borrowing any session
+     *
+     * @param command the command to call. Ex: dir
+     * @return CompletableFuture with the information returned by powerShell
+     * @throws PowerShellNotAvailableException if no session became available in time
+     */
+    public CompletableFuture<PowerShellResponse> executeCommandAsync(String command) throws PowerShellNotAvailableException {
+        if (this.coalesceCommands) {
+            return this.coalescer.execute(command, this::executeInSession);
+        }
+        return executeInSession(command);
+    }
+
+    // Executes the command in a borrowed session, giving it back once the command is finished
+    private CompletableFuture<PowerShellResponse> executeInSession(String command) {
+        Lease lease = borrow();
+        try {
+            CompletableFuture<PowerShellResponse> sessionResponse = lease.getSession().executeCommandAsync(command);
+            CompletableFuture<PowerShellResponse> response = sessionResponse.whenComplete((res, ex) -> lease.close());
+            //Cancelling the returned future cancels the command in the session
+            response.whenComplete((res, ex) -> {
+                if (response.isCancelled()) {
+                    sessionResponse.cancel(true);
+                }
+            });
+            return response;
+        } catch (RuntimeException ex) {
+            lease.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Execute a PowerShell command in a session borrowed from the pool, which is given back
+     * once the command is finished
+     *
+     * @param command the command to call. Ex: dir
+     * @return PowerShellResponse the information returned by powerShell
+     * @throws PowerShellNotAvailableException if no session became available in time
+     */
+    public PowerShellResponse executeCommand(String command) throws PowerShellNotAvailableException {
+        CompletableFuture<PowerShellResponse> response = executeCommandAsync(command);
+        try {
+            return response.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            logger.log(Level.SEVERE,
+                    "Unexpected error when processing PowerShell command", ex);
+            return new PowerShellResponse(true, "", false);
+        }
+    }
+
+    /**
+     * Number of sessions managed by the pool
+     *
+     * @return the size of the pool
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    // Gives back a borrowed session, replacing it if it is not usable anymore
+    private void giveBack(PowerShell session) {
+        if (this.closed) {
+            this.sessions.remove(session);
+            session.close();
+        } else if (!session.isAlive()) {
+            replace(session);
+        } else if (!session.whenCommandsFinished().isDone()) {
+            holdBack(session);
+        } else {
+            this.idleSessions.add(session);
+        }
+    }
+
+    // Keeps out of the pool a session whose commands are still running, usually a command that timed out or was
+    // cancelled, so the next borrower does not wait behind it. The session is given back once they finish,
+    // or replaced if they are still running after maxWait
+    private void holdBack(PowerShell session) {
+        this.drainingSessions.add(session);
+        try {
+            ScheduledFuture<?> replaceTask = this.replacer.schedule(() -> {
+                if (this.drainingSessions.remove(session)) {
+                    replace(session);
+                }
+            }, getMaxWait(), TimeUnit.MILLISECONDS);
+            session.whenCommandsFinished().whenComplete((res, ex) -> {
+                //Given back from the thread of the pool, not from the one reading the output of the session
+                if (this.drainingSessions.contains(session)) {
+                    this.replacer.execute(() -> {
+                        if (this.drainingSessions.remove(session)) {
+                            replaceTask.cancel(false);
+                            giveBack(session);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            //The pool was closed meanwhile
+            if (this.drainingSessions.remove(session)) {
+                this.sessions.remove(session);
+                session.close();
+            }
+        }
+    }
+
+    // Discards a dead session and opens a new one in background
+    private void replace(PowerShell session) {
+        logger.log(Level.WARNING, "Replacing dead PowerShell session of the pool");
+        this.sessions.remove(session);
+        session.close();
+        if (this.metrics != null) {
+            this.metrics.sessionRestarted();
+        }
+        scheduleOpenSession(0);
+    }
+
+    private void scheduleOpenSession(long delay) {
+        if (this.closed) {
+            return;
+        }
+        this.replacer.schedule(() -> {
+            if (!this.closed) {
+                try {
+                    this.idleSessions.add(openSession());
+                } catch (PowerShellNotAvailableException ex) {
+                    logger.log(Level.SEVERE, "Cannot open a new PowerShell session for the pool", ex);
+                    scheduleOpenSession(RETRY_OPEN_DELAY);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private PowerShell openSession() {
+        PowerShell session = PowerShell.openSession(this.powerShellExecutablePath, this.config);
+        if (this.metrics != null) {
+            session.metrics(this.metrics);
+        }
+        this.sessions.add(session);
+        return session;
+    }
+
+    //Checks if the pool have been already closed
+    private void checkState() {
+        if (this.closed) {
+            throw new IllegalStateException("PowerShell pool is already closed. Please open a new pool.");
+        }
+    }
+
+    /**
+     * Closes all the sessions of the pool. Sessions currently borrowed are closed once they are given back
+     */
+    @Override
+    public void close() {
+        if (!this.closed) {
+            this.closed = true;
+            this.replacer.shutdownNow();
+
+            PowerShell session;
+            while ((session = this.idleSessions.poll()) != null) {
+                this.sessions.remove(session);
+                session.close();
+            }
+            for (PowerShell draining : this.drainingSessions) {
+                if (this.drainingSessions.remove(draining)) {
+                    this.sessions.remove(draining);
+                    draining.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Exclusive use of a session of the pool. Closing the lease gives the session back to the pool.
+     */
+    public class Lease implements AutoCloseable {
+
+        private final PowerShell session;
+        private boolean released = false;
+
+        private Lease(PowerShell session) {
+            this.session = session;
+        }
+
+        /**
+         * Session borrowed from the pool. It must not be closed nor used once the lease is closed
+         *
+         * @return the PowerShell session
+         */
+        public PowerShell getSession() {
+            if (this.released) {
+                throw new IllegalStateException("The session has already been given back to the pool.");
+            }
+            return this.session;
+        }
+
+        /**
+         * Execute a PowerShell command in the borrowed session.
+         *
+         * @param command the command to call. Ex: dir
+         * @return PowerShellResponse the information returned by powerShell
+         */
+        public PowerShellResponse executeCommand(String command) {
+            return getSession().executeCommand(command);
+        }
+
+        /**
+         * Gives back the session to the pool
+         */
+        @Override
+        public void close() {
+            if (!this.released) {
+                this.released = true;
+                giveBack(this.session);
+            }
+        }
+    }
+}
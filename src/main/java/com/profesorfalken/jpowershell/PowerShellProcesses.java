@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Gets the PID of the PowerShell processes and destroys them together with their descendants.<p>
+ * Process handles are only available since Java 9, so they are used through reflection
+ * in order to keep the library compatible with Java 8.
+ *
+ * @author Javier Garcia Alonso
+ */
+final class PowerShellProcesses {
+
+    private static final Logger logger = Logger.getLogger(PowerShellProcesses.class.getName());
+
+    private static final Method PROCESS_PID = findMethod(Process.class, "pid");
+    private static final Method PROCESS_TO_HANDLE = findMethod(Process.class, "toHandle");
+    private static final Method HANDLE_DESCENDANTS = findMethod(findClass("java.lang.ProcessHandle"), "descendants");
+    private static final Method HANDLE_DESTROY_FORCIBLY = findMethod(findClass("java.lang.ProcessHandle"), "destroyForcibly");
+
+    //Maximum wait in seconds for taskkill to kill a process tree
+    private static final long TASKKILL_WAIT = 10;
+
+    private PowerShellProcesses() {
+    }
+
+    private static Class<?> findClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException ex) {
+            return null;
+        }
+    }
+
+    private static Method findMethod(Class<?> type, String name) {
+        try {
+            return type != null ? type.getMethod(name) : null;
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks if the running JVM supports process handles
+     *
+     * @return true if process trees can be destroyed
+     */
+    static boolean isProcessHandleSupported() {
+        return PROCESS_TO_HANDLE != null && HANDLE_DESCENDANTS != null && HANDLE_DESTROY_FORCIBLY != null;
+    }
+
+    /**
+     * Gets the PID of a process
+     *
+     * @param process the process
+     * @return the PID or -1 if it cannot be known without asking the process
+     */
+    static long getPid(Process process) {
+        if (PROCESS_PID != null) {
+            try {
+                return (Long) PROCESS_PID.invoke(process);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                logger.log(Level.FINE, "Cannot get the PID of the process", ex);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Forcibly destroys a process and all its descendants. On Windows the session process is the
+     * console which launches PowerShell, so PowerShell and the programs it runs are descendants
+     *
+     * @param process the process
+     * @return false if the descendants could not be destroyed, in which case only the process is destroyed
+     */
+    static boolean destroyTree(Process process) {
+        boolean destroyed = false;
+        if (isProcessHandleSupported()) {
+            try {
+                //The descendants are listed first, as they cannot be found anymore once their parent is destroyed
+                Stream<?> descendants = (Stream<?>) HANDLE_DESCENDANTS.invoke(PROCESS_TO_HANDLE.invoke(process));
+                List<?> handles = descendants.collect(Collectors.toList());
+                process.destroyForcibly();
+                for (Object handle : handles) {
+                    HANDLE_DESTROY_FORCIBLY.invoke(handle);
+                }
+                destroyed = true;
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                logger.log(Level.WARNING, "Cannot destroy the descendants of the process", ex);
+            }
+        }
+        if (!destroyed) {
+            process.destroyForcibly();
+        }
+        return destroyed;
+    }
+
+    /**
+     * Forcibly destroys a process and all its descendants. When they cannot be found using process handles
+     * (Java 8), the tree of the PowerShell process is killed by Windows using its PID
+     *
+     * @param process the process
+     * @param pid     the PID of the session, which is the one of PowerShell when it was asked to the console, or -1
+     * @return false if the descendants could not be destroyed, in which case only the process is destroyed
+     */
+    static boolean destroyTree(Process process, long pid) {
+        if (destroyTree(process)) {
+            return true;
+        }
+        return OSDetector.isWindows() && pid > 0 && killTree(pid);
+    }
+
+    //Kills the process with the given PID and all its descendants, waiting until they are killed
+    private static boolean killTree(long pid) {
+        try {
+            Process taskkill = Runtime.getRuntime().exec("taskkill.exe /PID " + pid + " /F /T");
+            return taskkill.waitFor(TASKKILL_WAIT, TimeUnit.SECONDS) && taskkill.exitValue() == 0;
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Unexpected error while killing powershell process", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.profesorfalken.jpowershell;
 
+import java.time.Duration;
+
 /**
  * Response of PowerShell command. This object encapsulate all the useful
  * returned information
@@ -26,17 +28,41 @@ public class PowerShellResponse {
     private final boolean error;
     private final String commandOutput;
     private final boolean timeout;
+    private final String errorOutput;
+    private final boolean success;
+    private final Integer lastExitCode;
+    private final Duration elapsedTime;
+    private final Throwable exception;
 
     PowerShellResponse(boolean isError, String commandOutput, boolean timeout) {
+        this(isError, commandOutput, timeout, "", !isError, null, Duration.ZERO);
+    }
+
+    PowerShellResponse(Throwable exception, String errorOutput) {
+        this(true, "", false, errorOutput, false, null, Duration.ZERO, exception);
+    }
+
+    PowerShellResponse(boolean isError, String commandOutput, boolean timeout, String errorOutput, boolean success,
+                       Integer lastExitCode, Duration elapsedTime) {
+        this(isError, commandOutput, timeout, errorOutput, success, lastExitCode, elapsedTime, null);
+    }
+
+    private PowerShellResponse(boolean isError, String commandOutput, boolean timeout, String errorOutput, boolean success,
+                               Integer lastExitCode, Duration elapsedTime, Throwable exception) {
         this.error = isError;
         this.commandOutput = commandOutput;
         this.timeout = timeout;
+        this.errorOutput = errorOutput;
+        this.success = success;
+        this.lastExitCode = lastExitCode;
+        this.elapsedTime = elapsedTime;
+        this.exception = exception;
     }
 
     /**
      * True if the command could not be correctly executed (timeout or unexpected error)<p>
      *
-     * If you want to check if the command itself finished in error, use the method {@link PowerShell#isLastCommandInError()}
+     * If you want to check if the command itself finished in error, use the method {@link #isSuccess()}
      * instead
      *
      * @return boolean value
@@ -62,4 +88,54 @@ public class PowerShellResponse {
     public boolean isTimeout() {
         return timeout;
     }
+
+    /**
+     * Retrieves the content written by the executed command to the error output, like the
+     * error records of PowerShell
+     *
+     * @return the error output
+     */
+    public String getErrorOutput() {
+        return errorOutput;
+    }
+
+    /**
+     * True if the command itself finished successfully, which is the value of <i>$?</i> in
+     * PowerShell just after the command. Always false if the command could not be executed
+     *
+     * @return boolean value
+     */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * Retrieves the value of <i>$LASTEXITCODE</i> in PowerShell just after the command, which is the
+     * exit code of the last native program run in the session
+     *
+     * @return the exit code or null if no native program has been run
+     */
+    public Integer getLastExitCode() {
+        return lastExitCode;
+    }
+
+    /**
+     * Time taken by PowerShell to execute the command, measured in the PowerShell session. It does not
+     * include the time the command waited for the previous ones
+     *
+     * @return the execution time, or zero if the command could not be executed
+     */
+    public Duration getElapsedTime() {
+        return elapsedTime;
+    }
+
+    /**
+     * Retrieves the exception which prevented the output of the command from being processed, like an
+     * exception thrown by the consumer of a streaming command or an object which could not be parsed
+     *
+     * @return the exception or null if the output was processed
+     */
+    public Throwable getException() {
+        return exception;
+    }
 }
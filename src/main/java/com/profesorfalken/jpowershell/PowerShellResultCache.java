@@ -0,0 +1,347 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of the responses of PowerShell commands, intended for read-only queries which are
+ * repeated often, like <i>Get-Service</i> or <i>$PSVersionTable</i>.<p>
+ * Responses are kept during a time to live and evicted in least recently used order when the
+ * cache exceeds its maximum number of entries or bytes. Identical commands requested while the
+ * first one is still running share its execution. Only successful responses are cached: responses
+ * in timeout or error and commands which failed in PowerShell ($? false) are executed again next time.<p>
+ * The commands are identified by their exact text, so it must not be used with commands that
+ * change the state of the system or of the session.
+ *
+ * @author Javier Garcia Alonso
+ */
+public class PowerShellResultCache {
+
+    //Declare logger
+    private static final Logger logger = Logger.getLogger(PowerShellResultCache.class.getName());
+
+    //Approximate memory taken by an entry besides the text of the command and its output
+    private static final long ENTRY_OVERHEAD = 64;
+
+    private final Function<String, CompletableFuture<PowerShellResponse>> executor;
+
+    //Entries in access order, so the first one is the least recently used
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    private long defaultTtlNanos = TimeUnit.SECONDS.toNanos(60);
+    private int maxEntries = 1000;
+    private long maxBytes = 10 * 1024 * 1024;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // Private constructor. Instance using create methods
+    private PowerShellResultCache(Function<String, CompletableFuture<PowerShellResponse>> executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a cache of the commands executed in the given session
+     *
+     * @param session the PowerShell session
+     * @return an instance of the class
+     */
+    public static PowerShellResultCache create(PowerShell session) {
+        if (session == null) {
+            throw new IllegalArgumentException("Session cannot be null");
+        }
+        return new PowerShellResultCache(session::executeCommandAsync);
+    }
+
+    /**
+     * Creates a cache of the commands executed in the sessions of the given pool
+     *
+     * @param pool the pool of PowerShell sessions
+     * @return an instance of the class
+     */
+    public static PowerShellResultCache create(PowerShellPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Pool cannot be null");
+        }
+        return new PowerShellResultCache(pool::executeCommandAsync);
+    }
+
+    /**
+     * Creates a cache of the commands executed by the given function
+     *
+     * @param executor function which executes a command asynchronously
+     * @return an instance of the class
+     */
+    public static PowerShellResultCache create(Function<String, CompletableFuture<PowerShellResponse>> executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null");
+        }
+        return new PowerShellResultCache(executor);
+    }
+
+    /**
+     * Sets the time during which responses are kept when no specific time is given. Default value is 60 seconds
+     *
+     * @param ttl  the time to live
+     * @param unit the time unit of the time to live
+     * @return instance to chain
+     */
+    public synchronized PowerShellResultCache ttl(long ttl, TimeUnit unit) {
+        this.defaultTtlNanos = unit.toNanos(ttl);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of cached responses. Default value is 1000
+     *
+     * @param maxEntries the maximum number of entries
+     * @return instance to chain
+     */
+    public synchronized PowerShellResultCache maxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The cache must allow at least one entry");
+        }
+        this.maxEntries = maxEntries;
+        evict();
+        return this;
+    }
+
+    /**
+     * Sets the maximum approximate size in bytes of the cached responses. Default value is 10 MB
+     *
+     * @param maxBytes the maximum size in bytes
+     * @return instance to chain
+     */
+    public synchronized PowerShellResultCache maxBytes(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("The cache must allow at least one byte");
+        }
+        this.maxBytes = maxBytes;
+        evict();
+        return this;
+    }
+
+    /**
+     * Execute a PowerShell command or get its cached response, kept during the default time to live
+     *
+     * @param command the command to call. Ex: Get-Service
+     * @return PowerShellResponse the information returned by powerShell
+     */
+    public PowerShellResponse executeCommand(String command) {
+        return waitResponse(executeCommandAsync(command));
+    }
+
+    /**
+     * Execute a PowerShell command or get its cached response, kept during the given time to live
+     *
+     * @param command the command to call. Ex: Get-WmiObject Win32_BIOS
+     * @param ttl     the time to live of the response
+     * @param unit    the time unit of the time to live
+     * @return PowerShellResponse the information returned by powerShell
+     */
+    public PowerShellResponse executeCommand(String command, long ttl, TimeUnit unit) {
+        return waitResponse(executeCommandAsync(command, ttl, unit));
+    }
+
+    /**
+     * Execute a PowerShell command or get its cached response without blocking the calling thread.
+     * The response is kept during the default time to live
+     *
+     * @param command the command to call. Ex: Get-Service
+     * @return CompletableFuture with the information returned by powerShell
+     */
+    public CompletableFuture<PowerShellResponse> executeCommandAsync(String command) {
+        long ttlNanos;
+        synchronized (this) {
+            ttlNanos = this.defaultTtlNanos;
+        }
+        return executeCommandAsync(command, ttlNanos);
+    }
+
+    /**
+     * Execute a PowerShell command or get its cached response without blocking the calling thread.
+     * The response is kept during the given time to live
+     *
+     * @param command the command to call. Ex: Get-WmiObject Win32_BIOS
+     * @param ttl     the time to live of the response
+     * @param unit    the time unit of the time to live
+     * @return CompletableFuture with the information returned by powerShell
+     */
+    public CompletableFuture<PowerShellResponse> executeCommandAsync(String command, long ttl, TimeUnit unit) {
+        return executeCommandAsync(command, unit.toNanos(ttl));
+    }
+
+    private CompletableFuture<PowerShellResponse> executeCommandAsync(String command, long ttlNanos) {
+        if (command == null) {
+            throw new IllegalArgumentException("Command cannot be null");
+        }
+
+        Entry entry;
+        CompletableFuture<PowerShellResponse> response;
+        synchronized (this) {
+            entry = this.entries.get(command);
+            if (entry != null && entry.isExpired(System.nanoTime())) {
+                remove(command, entry);
+                entry = null;
+            }
+            if (entry != null) {
+                response = entry.command.join();
+                if (response != null) {
+                    this.hits.increment();
+                    return response;
+                }
+                //All the calls of the running command cancelled it, so it is executed again
+                remove(command, entry);
+            }
+            entry = new Entry();
+            this.entries.put(command, entry);
+            response = entry.command.join();
+        }
+        this.misses.increment();
+
+        Entry loadingEntry = entry;
+        try {
+            //The response is passed to the callers out of the lock, as they may chain actions to their futures
+            loadingEntry.command.start(this.executor.apply(command),
+                    (res, ex) -> loaded(command, loadingEntry, res, ex, ttlNanos));
+        } catch (RuntimeException ex) {
+            loaded(command, loadingEntry, null, ex, ttlNanos);
+            loadingEntry.command.fail(ex);
+        }
+        return response;
+    }
+
+    // Stores the response of a command once it is finished, before it is passed to the callers waiting for it
+    private synchronized void loaded(String command, Entry entry, PowerShellResponse response, Throwable ex, long ttlNanos) {
+        if (ex != null || response.isError() || !response.isSuccess() || ttlNanos <= 0) {
+            remove(command, entry);
+        } else if (this.entries.get(command) == entry) {
+            entry.expiresAtNanos = System.nanoTime() + ttlNanos;
+            entry.bytes = ENTRY_OVERHEAD + 2L * (command.length() + response.getCommandOutput().length());
+            entry.loaded = true;
+            this.bytes += entry.bytes;
+            evict();
+        }
+    }
+
+    // Removes least recently used responses until the cache is within its limits. Running commands are kept
+    private void evict() {
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while ((this.entries.size() > this.maxEntries || this.bytes > this.maxBytes) && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.loaded) {
+                iterator.remove();
+                this.bytes -= entry.bytes;
+            }
+        }
+    }
+
+    private void remove(String command, Entry entry) {
+        if (this.entries.remove(command, entry) && entry.loaded) {
+            this.bytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * Removes the cached response of a command, so the next call executes it again
+     *
+     * @param command the command
+     */
+    public synchronized void invalidate(String command) {
+        Entry entry = this.entries.get(command);
+        if (entry != null && entry.loaded) {
+            remove(command, entry);
+        }
+    }
+
+    /**
+     * Removes all the cached responses
+     */
+    public synchronized void clear() {
+        this.entries.values().removeIf(entry -> entry.loaded);
+        this.bytes = 0;
+    }
+
+    /**
+     * Number of responses currently cached or being loaded
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Approximate size in bytes of the cached responses
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Number of calls answered with a cached response or sharing a running execution
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Number of calls which executed the command
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    // Waits for the response of a command sent asynchronously
+    private static PowerShellResponse waitResponse(CompletableFuture<PowerShellResponse> response) {
+        try {
+            return response.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            logger.log(Level.SEVERE,
+                    "Unexpected error when processing PowerShell command", ex);
+            return new PowerShellResponse(true, "", false);
+        }
+    }
+
+    //Response of a command, shared by all the calls since it is requested until it expires
+    private static final class Entry {
+        private final PowerShellSharedCommand command = new PowerShellSharedCommand();
+        private boolean loaded = false;
+        private long expiresAtNanos;
+        private long bytes;
+
+        private boolean isExpired(long nowNanos) {
+            return this.loaded && nowNanos - this.expiresAtNanos >= 0;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the scripts already loaded as functions in a PowerShell session.<p>
+ * Each script is identified by the hash of its content, so a script is parsed by PowerShell only once
+ * per session. Script files are also remembered by path, modification time and size, so unchanged
+ * files do not even need to be read again.
+ *
+ * @author Javier Garcia Alonso
+ */
+class PowerShellScriptCache {
+
+    private static final String FUNCTION_PREFIX = "jpowershell_";
+
+    private final Map<String, CachedFile> files = new ConcurrentHashMap<>();
+
+    private final Set<String> definedFunctions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Gets the function already defined in the session for a script file, if the file did not change
+     *
+     * @param scriptFile the script file
+     * @return the function name or null if the script has to be read and defined
+     */
+    String getDefinedFunction(File scriptFile) {
+        CachedFile cachedFile = this.files.get(scriptFile.getAbsolutePath());
+        if (cachedFile != null && cachedFile.lastModified == scriptFile.lastModified()
+                && cachedFile.length == scriptFile.length() && isDefined(cachedFile.functionName)) {
+            return cachedFile.functionName;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the name of the function of a script, remembering the file it was read from
+     *
+     * @param script     the content of the script
+     * @param scriptFile the file of the script or null if it was not read from a file
+     * @return the function name
+     */
+    String register(String script, File scriptFile) {
+        String functionName = FUNCTION_PREFIX + hash(script);
+        if (scriptFile != null) {
+            this.files.put(scriptFile.getAbsolutePath(),
+                    new CachedFile(functionName, scriptFile.lastModified(), scriptFile.length()));
+        }
+        return functionName;
+    }
+
+    boolean isDefined(String functionName) {
+        return this.definedFunctions.contains(functionName);
+    }
+
+    //Called once the function has been defined in the session
+    void setDefined(String functionName) {
+        this.definedFunctions.add(functionName);
+    }
+
+    //Forgets all the scripts, for example when the PowerShell process is not the same anymore
+    void clear() {
+        this.files.clear();
+        this.definedFunctions.clear();
+    }
+
+    //SHA-256 of the script as hexadecimal string
+    private static String hash(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(script.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hash = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            //SHA-256 is available in every Java platform
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static class CachedFile {
+        private final String functionName;
+        private final long lastModified;
+        private final long length;
+
+        private CachedFile(String functionName, long lastModified, long length) {
+            this.functionName = functionName;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
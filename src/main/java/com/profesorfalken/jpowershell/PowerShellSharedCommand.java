@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Execution of a command shared by all the callers which requested it while it was running.<p>
+ * Each caller gets its own future, so it cannot complete the shared response. Cancelling it only
+ * stops waiting for the response, unless it is the last caller still waiting: in that case the
+ * execution itself is cancelled.
+ *
+ * @author Javier Garcia Alonso
+ */
+class PowerShellSharedCommand {
+
+    private final CompletableFuture<PowerShellResponse> response = new CompletableFuture<>();
+
+    private CompletableFuture<PowerShellResponse> execution;
+    private int callers = 0;
+    private boolean cancelled = false;
+
+    /**
+     * Adds a caller waiting for the response
+     *
+     * @return the future of the caller, or null if the execution was cancelled by all its callers,
+     * in which case the command has to be executed again
+     */
+    synchronized CompletableFuture<PowerShellResponse> join() {
+        if (this.cancelled) {
+            return null;
+        }
+        CompletableFuture<PowerShellResponse> caller = this.response.thenApply(Function.identity());
+        if (!this.response.isDone()) {
+            this.callers++;
+            caller.whenComplete((res, ex) -> {
+                if (caller.isCancelled()) {
+                    leave();
+                }
+            });
+        }
+        return caller;
+    }
+
+    //Called when a caller cancels its future. The execution is cancelled once nobody waits for it
+    private void leave() {
+        CompletableFuture<PowerShellResponse> cancelledExecution = null;
+        synchronized (this) {
+            if (--this.callers == 0 && !this.response.isDone()) {
+                this.cancelled = true;
+                cancelledExecution = this.execution;
+            }
+        }
+        if (cancelledExecution != null) {
+            cancelledExecution.cancel(true);
+        }
+    }
+
+    /**
+     * Sets the execution of the command, which completes the response of the callers once finished
+     *
+     * @param execution  the future of the execution
+     * @param onFinished called once the execution is finished, before passing its response to the callers
+     */
+    void start(CompletableFuture<PowerShellResponse> execution, BiConsumer<PowerShellResponse, Throwable> onFinished) {
+        boolean alreadyCancelled;
+        synchronized (this) {
+            this.execution = execution;
+            alreadyCancelled = this.cancelled;
+        }
+        execution.whenComplete((res, ex) -> {
+            onFinished.accept(res, ex);
+            if (ex != null) {
+                this.response.completeExceptionally(ex);
+            } else {
+                this.response.complete(res);
+            }
+        });
+        //All the callers left before the command was sent
+        if (alreadyCancelled) {
+            execution.cancel(true);
+        }
+    }
+
+    /**
+     * Completes the response of the callers with the error which prevented the command from being executed
+     *
+     * @param ex the error
+     */
+    void fail(Throwable ex) {
+        this.response.completeExceptionally(ex);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provides the threads used by the sessions when they run on virtual threads.<p>
+ * Virtual threads are only available since Java 21, so they are created through reflection
+ * in order to keep the library compatible with Java 8.
+ *
+ * @author Javier Garcia Alonso
+ */
+final class PowerShellThreads {
+
+    private static final Logger logger = Logger.getLogger(PowerShellThreads.class.getName());
+
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutorFactory();
+
+    private PowerShellThreads() {
+    }
+
+    private static Method findVirtualThreadExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks if the running JVM supports virtual threads
+     *
+     * @return true if virtual threads can be created
+     */
+    static boolean isVirtualThreadSupported() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor which starts a new virtual thread for each task
+     *
+     * @return the executor or null if virtual threads are not supported
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        if (NEW_VIRTUAL_THREAD_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                logger.log(Level.WARNING, "Cannot create virtual threads", ex);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the scheduler shared by all the sessions running on virtual threads to complete their
+     * commands in timeout. Its tasks are short, so a single daemon thread is enough
+     *
+     * @return the shared scheduler
+     */
+    static ScheduledExecutorService getTimeoutScheduler() {
+        return TimeoutSchedulerHolder.SCHEDULER;
+    }
+
+    //Lazily created the first time a session uses virtual threads
+    private static final class TimeoutSchedulerHolder {
+        private static final ScheduledExecutorService SCHEDULER = createTimeoutScheduler();
+
+        private static ScheduledExecutorService createTimeoutScheduler() {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "jpowershell-timeouts");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+            return scheduler;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.profesorfalken.jpowershell;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for the CLIXML parser used to read serialized PowerShell objects
+ *
+ * @author Javier Garcia Alonso
+ */
+public class PowerShellClixmlParserTest {
+
+    private static final String SERVICE_CLIXML = "<Objs Version=\"1.1.0.1\" xmlns=\"http://schemas.microsoft.com/powershell/2004/04\">"
+            + "<Obj RefId=\"0\">"
+            + "<TN RefId=\"0\"><T>System.ServiceProcess.ServiceController</T><T>System.Object</T></TN>"
+            + "<ToString>System.ServiceProcess.ServiceController</ToString>"
+            + "<Props>"
+            + "<S N=\"Name\">WinRM</S>"
+            + "<S N=\"DisplayName\">Windows Remote_x000A_Management</S>"
+            + "<B N=\"CanStop\">true</B>"
+            + "<I64 N=\"WorkingSet\">12345678901</I64>"
+            + "<DT N=\"StartTime\">2019-03-01T10:15:30.1234567+01:00</DT>"
+            + "<Nil N=\"Site\" />"
+            + "<Obj N=\"Status\" RefId=\"1\">"
+            + "<TN RefId=\"1\"><T>System.ServiceProcess.ServiceControllerStatus</T><T>System.Enum</T></TN>"
+            + "<ToString>Running</ToString><I32>4</I32>"
+            + "</Obj>"
+            + "<Obj N=\"DependentServices\" RefId=\"2\">"
+            + "<TN RefId=\"2\"><T>System.ServiceProcess.ServiceController[]</T></TN>"
+            + "<LST><S>a</S><S>b</S></LST>"
+            + "</Obj>"
+            + "<Ref N=\"SameStatus\" RefId=\"1\" />"
+            + "</Props>"
+            + "</Obj>"
+            + "</Objs>";
+
+    @Test
+    public void testParseObject() {
+        Object value = PowerShellClixmlParser.parse(SERVICE_CLIXML);
+
+        Assert.assertTrue(value instanceof PowerShellObject);
+        PowerShellObject service = (PowerShellObject) value;
+        Assert.assertEquals(Arrays.asList("System.ServiceProcess.ServiceController", "System.Object"), service.getTypeNames());
+        Assert.assertEquals("WinRM", service.getProperty("Name"));
+        Assert.assertEquals("Windows Remote\nManagement", service.getProperty("DisplayName"));
+        Assert.assertEquals(Boolean.TRUE, service.getProperty("CanStop"));
+        Assert.assertEquals(12345678901L, service.getProperty("WorkingSet"));
+        Assert.assertEquals(OffsetDateTime.parse("2019-03-01T10:15:30.1234567+01:00"), service.getProperty("StartTime"));
+        Assert.assertTrue(service.getProperties().containsKey("Site"));
+        Assert.assertNull(service.getProperty("Site"));
+
+        PowerShellObject status = (PowerShellObject) service.getProperty("Status");
+        Assert.assertEquals("Running", status.toString());
+        Assert.assertEquals(4, status.getValue());
+        Assert.assertSame(status, service.getProperty("SameStatus"));
+
+        Assert.assertEquals(Arrays.asList("a", "b"), service.getProperty("DependentServices"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testParseCollections() {
+        Object value = PowerShellClixmlParser.parse("<Objs Version=\"1.1.0.1\" xmlns=\"http://schemas.microsoft.com/powershell/2004/04\">"
+                + "<Obj RefId=\"0\"><TN RefId=\"0\"><T>System.Collections.Hashtable</T></TN>"
+                + "<DCT><En><S N=\"Key\">one</S><I32 N=\"Value\">1</I32></En><En><S N=\"Key\">list</S>"
+                + "<Obj N=\"Value\" RefId=\"1\"><LST><Db>1.5</Db><Nil /></LST></Obj></En></DCT>"
+                + "</Obj></Objs>");
+
+        Assert.assertTrue(value instanceof Map);
+        Map<Object, Object> dictionary = (Map<Object, Object>) value;
+        Assert.assertEquals(1, dictionary.get("one"));
+        Assert.assertEquals(Arrays.asList(1.5, null), dictionary.get("list"));
+    }
+
+    @Test
+    public void testObjectWithoutStringValue() {
+        PowerShellObject object = (PowerShellObject) PowerShellClixmlParser.parse("<Objs Version=\"1.1.0.1\" "
+                + "xmlns=\"http://schemas.microsoft.com/powershell/2004/04\"><Obj RefId=\"0\">"
+                + "<TN RefId=\"0\"><T>System.Management.Automation.PSCustomObject</T><T>System.Object</T></TN>"
+                + "<MS><S N=\"Name\">WinRM</S></MS></Obj></Objs>");
+        Assert.assertEquals("System.Management.Automation.PSCustomObject", object.toString());
+
+        PowerShellObject value = (PowerShellObject) PowerShellClixmlParser.parse("<Objs Version=\"1.1.0.1\" "
+                + "xmlns=\"http://schemas.microsoft.com/powershell/2004/04\"><Obj RefId=\"0\"><I32>4</I32></Obj></Objs>");
+        Assert.assertEquals("4", value.toString());
+    }
+
+    @Test
+    public void testParsePrimitive() {
+        Assert.assertEquals(42, PowerShellClixmlParser.parse("<Objs Version=\"1.1.0.1\" "
+                + "xmlns=\"http://schemas.microsoft.com/powershell/2004/04\"><I32>42</I32></Objs>"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidClixml() {
+        PowerShellClixmlParser.parse("<Objs><S>unterminated</Objs>");
+    }
+}
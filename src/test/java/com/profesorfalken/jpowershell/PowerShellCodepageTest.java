@@ -0,0 +1,51 @@
+package com.profesorfalken.jpowershell;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/**
+ * Tests for the code page lookups used to set the console encoding
+ *
+ * @author Javier Garcia Alonso
+ */
+public class PowerShellCodepageTest {
+
+    @Test
+    public void testIdentifierByCodePageName() {
+        Assert.assertEquals("1252", PowerShellCodepage.getIdentifierByCodePageName("windows-1252"));
+        Assert.assertEquals("1252", PowerShellCodepage.getIdentifierByCodePageName("WINDOWS-1252"));
+        Assert.assertEquals("850", PowerShellCodepage.getIdentifierByCodePageName("IBM850"));
+        Assert.assertEquals("65001", PowerShellCodepage.getIdentifierByCodePageName("UTF-8"));
+    }
+
+    @Test
+    public void testIdentifierByAlias() {
+        //Java names and aliases that are not listed in the code page table
+        Assert.assertEquals("1252", PowerShellCodepage.getIdentifierByCodePageName("Cp1252"));
+        Assert.assertEquals("20127", PowerShellCodepage.getIdentifierByCodePageName("US-ASCII"));
+        Assert.assertEquals("20127", PowerShellCodepage.getIdentifierByCodePageName("ascii"));
+        Assert.assertEquals("28591", PowerShellCodepage.getIdentifierByCodePageName("latin1"));
+    }
+
+    @Test
+    public void testUnknownCodePageName() {
+        Assert.assertEquals("65001", PowerShellCodepage.getIdentifierByCodePageName("unknown-charset"));
+        Assert.assertEquals("65001", PowerShellCodepage.getIdentifierByCodePageName(null));
+    }
+
+    @Test
+    public void testCharsetLookups() {
+        Assert.assertEquals(Optional.of(StandardCharsets.UTF_8), PowerShellCodepage.getCharsetByIdentifier("65001"));
+        Assert.assertEquals(Optional.of(Charset.forName("windows-1252")), PowerShellCodepage.getCharsetByIdentifier("1252"));
+        Assert.assertFalse(PowerShellCodepage.getCharsetByIdentifier("709").isPresent());
+        Assert.assertFalse(PowerShellCodepage.getCharsetByIdentifier(null).isPresent());
+
+        Assert.assertEquals(Optional.of("65001"), PowerShellCodepage.getIdentifierByCharset(StandardCharsets.UTF_8));
+        Assert.assertEquals(Optional.of("28591"), PowerShellCodepage.getIdentifierByCharset(StandardCharsets.ISO_8859_1));
+        Assert.assertFalse(PowerShellCodepage.getIdentifierByCharset(null).isPresent());
+    }
+}
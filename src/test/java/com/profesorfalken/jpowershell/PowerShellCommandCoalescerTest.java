@@ -0,0 +1,85 @@
+package com.profesorfalken.jpowershell;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Tests for the sharing of identical running commands
+ *
+ * @author Javier Garcia Alonso
+ */
+public class PowerShellCommandCoalescerTest {
+
+    private final List<CompletableFuture<PowerShellResponse>> pending = new ArrayList<>();
+
+    private CompletableFuture<PowerShellResponse> execute(String command) {
+        CompletableFuture<PowerShellResponse> response = new CompletableFuture<>();
+        this.pending.add(response);
+        return response;
+    }
+
+    @Test
+    public void testSharedExecution() {
+        PowerShellCommandCoalescer coalescer = new PowerShellCommandCoalescer();
+
+        CompletableFuture<PowerShellResponse> first = coalescer.execute("Get-Process", this::execute);
+        CompletableFuture<PowerShellResponse> second = coalescer.execute("Get-Process", this::execute);
+        CompletableFuture<PowerShellResponse> other = coalescer.execute("Get-Service", this::execute);
+        Assert.assertEquals(2, this.pending.size());
+
+        PowerShellResponse response = new PowerShellResponse(false, "processes", false);
+        this.pending.get(0).complete(response);
+        Assert.assertSame(response, first.join());
+        Assert.assertSame(response, second.join());
+        Assert.assertFalse(other.isDone());
+    }
+
+    @Test
+    public void testNewExecutionOnceFinished() {
+        PowerShellCommandCoalescer coalescer = new PowerShellCommandCoalescer();
+
+        coalescer.execute("Get-Process", this::execute);
+        this.pending.get(0).complete(new PowerShellResponse(false, "first", false));
+
+        CompletableFuture<PowerShellResponse> next = coalescer.execute("Get-Process", this::execute);
+        Assert.assertEquals(2, this.pending.size());
+        Assert.assertFalse(next.isDone());
+    }
+
+    @Test
+    public void testSharedFailure() {
+        PowerShellCommandCoalescer coalescer = new PowerShellCommandCoalescer();
+
+        CompletableFuture<PowerShellResponse> first = coalescer.execute("Get-Process", this::execute);
+        CompletableFuture<PowerShellResponse> second = coalescer.execute("Get-Process", this::execute);
+        //Cancelling the future of one caller does not affect the others
+        first.cancel(false);
+        this.pending.get(0).completeExceptionally(new IllegalStateException());
+
+        Assert.assertTrue(second.isCompletedExceptionally());
+        Assert.assertEquals(1, this.pending.size());
+    }
+
+    @Test
+    public void testCancelledByAllCallers() {
+        PowerShellCommandCoalescer coalescer = new PowerShellCommandCoalescer();
+
+        CompletableFuture<PowerShellResponse> first = coalescer.execute("Get-Process", this::execute);
+        CompletableFuture<PowerShellResponse> second = coalescer.execute("Get-Process", this::execute);
+        first.cancel(true);
+        Assert.assertFalse(this.pending.get(0).isCancelled());
+        Assert.assertFalse(second.isDone());
+
+        //The execution is cancelled with the last caller waiting for it
+        second.cancel(true);
+        Assert.assertTrue(this.pending.get(0).isCancelled());
+
+        CompletableFuture<PowerShellResponse> next = coalescer.execute("Get-Process", this::execute);
+        Assert.assertEquals(2, this.pending.size());
+        Assert.assertFalse(next.isDone());
+    }
+}
@@ -0,0 +1,57 @@
+package com.profesorfalken.jpowershell;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for the JSON parser used to read ConvertTo-Json output
+ *
+ * @author Javier Garcia Alonso
+ */
+public class PowerShellJsonParserTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testParseObject() {
+        Object value = PowerShellJsonParser.parse(
+                "{\"Name\":\"WinRM\",\"Status\":4,\"CanStop\":true,\"Path\":\"C:\\\\Windows\\u00e9\",\"Ratio\":0.5,"
+                        + "\"Parent\":null,\"DependentServices\":[],\"Tags\":[\"a\",{\"b\":-1E3}]}");
+
+        Assert.assertTrue(value instanceof Map);
+        Map<String, Object> object = (Map<String, Object>) value;
+        Assert.assertEquals(Arrays.asList("Name", "Status", "CanStop", "Path", "Ratio", "Parent", "DependentServices", "Tags"),
+                Arrays.asList(object.keySet().toArray()));
+        Assert.assertEquals("WinRM", object.get("Name"));
+        Assert.assertEquals(4L, object.get("Status"));
+        Assert.assertEquals(Boolean.TRUE, object.get("CanStop"));
+        Assert.assertEquals("C:\\Windows\u00e9", object.get("Path"));
+        Assert.assertEquals(0.5, object.get("Ratio"));
+        Assert.assertNull(object.get("Parent"));
+        Assert.assertTrue(((List<Object>) object.get("DependentServices")).isEmpty());
+
+        List<Object> tags = (List<Object>) object.get("Tags");
+        Assert.assertEquals("a", tags.get(0));
+        Assert.assertEquals(-1000.0, ((Map<String, Object>) tags.get(1)).get("b"));
+    }
+
+    @Test
+    public void testParseScalars() {
+        Assert.assertEquals("text", PowerShellJsonParser.parse(" \"text\" "));
+        Assert.assertEquals(12345678901234L, PowerShellJsonParser.parse("12345678901234"));
+        Assert.assertEquals(Boolean.FALSE, PowerShellJsonParser.parse("false"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidJson() {
+        PowerShellJsonParser.parse("{\"Name\":\"WinRM\"");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTrailingContent() {
+        PowerShellJsonParser.parse("{} error");
+    }
+}
@@ -0,0 +1,52 @@
+package com.profesorfalken.jpowershell;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the in-memory metrics recorder
+ *
+ * @author Javier Garcia Alonso
+ */
+public class PowerShellMetricsRecorderTest {
+
+    @Test
+    public void testCounters() {
+        PowerShellMetricsRecorder recorder = new PowerShellMetricsRecorder();
+        recorder.commandCompleted(0, TimeUnit.MILLISECONDS.toNanos(2), 3, 30);
+        recorder.commandCompleted(0, TimeUnit.MILLISECONDS.toNanos(4), 1, 10);
+        recorder.commandTimedOut();
+        recorder.commandCancelled();
+        recorder.sessionKilled();
+
+        Assert.assertEquals(2, recorder.getCompletedCommands());
+        Assert.assertEquals(1, recorder.getTimedOutCommands());
+        Assert.assertEquals(1, recorder.getCancelledCommands());
+        Assert.assertEquals(1, recorder.getKilledSessions());
+        Assert.assertEquals(4, recorder.getOutputLines());
+        Assert.assertEquals(40, recorder.getOutputChars());
+        Assert.assertEquals(3.0, recorder.getMeanLatencyMillis(), 0.001);
+        Assert.assertEquals(4.0, recorder.getMaxLatencyMillis(), 0.001);
+
+        recorder.reset();
+        Assert.assertEquals(0, recorder.getCompletedCommands());
+        Assert.assertEquals(0, recorder.getMaxLatencyMillis(), 0.001);
+    }
+
+    @Test
+    public void testLatencyPercentiles() {
+        PowerShellMetricsRecorder recorder = new PowerShellMetricsRecorder();
+        for (int i = 0; i < 99; i++) {
+            recorder.commandCompleted(TimeUnit.MICROSECONDS.toNanos(10), TimeUnit.MICROSECONDS.toNanos(90), 1, 1);
+        }
+        recorder.commandCompleted(0, TimeUnit.SECONDS.toNanos(1), 1, 1);
+
+        //Percentiles are approximated by the upper bound of their power of two bucket
+        double median = recorder.getLatencyPercentileMillis(50);
+        Assert.assertTrue("Unexpected median: " + median, median >= 0.1 && median < 0.2);
+        Assert.assertEquals(1000, recorder.getLatencyPercentileMillis(100), 0.001);
+        Assert.assertTrue(recorder.getQueueWaitPercentileMillis(99) < 0.02);
+    }
+}
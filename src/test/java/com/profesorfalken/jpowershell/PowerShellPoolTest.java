@@ -0,0 +1,128 @@
+package com.profesorfalken.jpowershell;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Tests for the pool of PowerShell sessions
+ *
+ * @author Javier Garcia Alonso
+ */
+public class PowerShellPoolTest {
+
+    /**
+     * Test of borrow method, of class PowerShellPool.
+     */
+    @Test
+    public void testBorrow() {
+        System.out.println("testBorrow");
+        if (OSDetector.isWindows()) {
+            try (PowerShellPool pool = PowerShellPool.openPool(2)) {
+                try (PowerShellPool.Lease lease = pool.borrow()) {
+                    PowerShellResponse response = lease.executeCommand("Get-WmiObject Win32_BIOS");
+
+                    System.out.println("Check BIOS:" + response.getCommandOutput());
+
+                    Assert.assertTrue(response.getCommandOutput().contains("SMBIOSBIOSVersion"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of several threads sharing the sessions of the pool
+     */
+    @Test
+    public void testConcurrentBorrow() throws Exception {
+        System.out.println("testConcurrentBorrow");
+        if (OSDetector.isWindows()) {
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try (PowerShellPool pool = PowerShellPool.openPool(2)) {
+                List<Future<String>> results = new ArrayList<>();
+                for (int i = 0; i < 10; i++) {
+                    final int value = i;
+                    results.add(executor.submit(() -> {
+                        try (PowerShellPool.Lease lease = pool.borrow()) {
+                            return lease.executeCommand("Write-Output " + value).getCommandOutput();
+                        }
+                    }));
+                }
+
+                for (int i = 0; i < 10; i++) {
+                    Assert.assertEquals(String.valueOf(i), results.get(i).get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Test of a session killed while being borrowed
+     */
+    @Test
+    public void testReplaceDeadSession() {
+        System.out.println("testReplaceDeadSession");
+        if (OSDetector.isWindows()) {
+            try (PowerShellPool pool = PowerShellPool.openPool(1)) {
+                try (PowerShellPool.Lease lease = pool.borrow()) {
+                    lease.getSession().close();
+                }
+
+                try (PowerShellPool.Lease lease = pool.borrow(60, TimeUnit.SECONDS)) {
+                    Assert.assertFalse(lease.executeCommand("Get-Process").isError());
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of a session given back while still running a command which timed out, using the stub console
+     */
+    @Test
+    public void testHoldBackRunningSession() throws Exception {
+        System.out.println("testHoldBackRunningSession");
+        Map<String, String> config = new HashMap<>();
+        config.put("maxWait", "1000");
+        try (PowerShellPool pool = PowerShellPool.openPool(1, StubPowerShell.createExecutable(), config)) {
+            Assert.assertTrue(pool.executeCommand("Start-Sleep -Seconds 30").isTimeout());
+
+            //The session is kept out of the pool and replaced, so the next command does not wait for the hung one
+            PowerShellResponse response = null;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+            while (response == null && System.nanoTime() < deadline) {
+                try {
+                    response = pool.executeCommand("Write-Output 'ok'");
+                } catch (PowerShellNotAvailableException ex) {
+                    //The replacement session is still being opened
+                }
+            }
+
+            Assert.assertNotNull(response);
+            Assert.assertFalse(response.isTimeout());
+            Assert.assertEquals("ok", response.getCommandOutput());
+        }
+    }
+
+    /**
+     * Test that the configuration given when opening the pool is used to start its sessions, using the stub console
+     */
+    @Test
+    public void testOpenPoolWithConfiguration() throws Exception {
+        System.out.println("testOpenPoolWithConfiguration");
+        //No console can be ready in 1 ms, so the pool cannot be opened if the sessions use this startup wait
+        Map<String, String> config = new HashMap<>();
+        config.put("startupWait", "1");
+        try (PowerShellPool pool = PowerShellPool.openPool(1, StubPowerShell.createExecutable(), config)) {
+            Assert.fail("Sessions should not start in 1 ms");
+        } catch (PowerShellNotAvailableException ex) {
+            //Expected
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.profesorfalken.jpowershell;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the PID and the destruction of the processes of the sessions
+ *
+ * @author Javier Garcia Alonso
+ */
+public class PowerShellProcessesTest {
+
+    @Test
+    public void testDestroyTree() throws Exception {
+        Process process = sleeper("parent").start();
+        //Wait until the child is started and listening
+        int childPort = Integer.parseInt(new BufferedReader(new InputStreamReader(process.getInputStream())).readLine());
+
+        if (PowerShellProcesses.isProcessHandleSupported()) {
+            Assert.assertTrue(PowerShellProcesses.getPid(process) > 0);
+        }
+
+        boolean destroyed = PowerShellProcesses.destroyTree(process);
+        Assert.assertEquals(PowerShellProcesses.isProcessHandleSupported(), destroyed);
+        Assert.assertTrue(process.waitFor(5, TimeUnit.SECONDS));
+
+        if (destroyed) {
+            //The child does not accept connections anymore once it is destroyed
+            boolean childAlive = true;
+            for (int i = 0; i < 50 && childAlive; i++) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), childPort), 1000);
+                    Thread.sleep(100);
+                } catch (IOException ex) {
+                    childAlive = false;
+                }
+            }
+            Assert.assertFalse(childAlive);
+        }
+    }
+
+    private static ProcessBuilder sleeper(String role) {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Sleeper.class.getName(), role);
+    }
+
+    /**
+     * Process which waits after launching a child which shares its output and accepts connections until it is destroyed
+     */
+    public static class Sleeper {
+        public static void main(String[] args) throws Exception {
+            if ("parent".equals(args[0])) {
+                sleeper("child").inheritIO().start().waitFor();
+            } else {
+                try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+                    server.setSoTimeout(60000);
+                    System.out.println(server.getLocalPort());
+                    System.out.flush();
+                    while (true) {
+                        server.accept().close();
+                    }
+                }
+            }
+        }
+    }
+}
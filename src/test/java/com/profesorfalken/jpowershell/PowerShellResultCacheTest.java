@@ -0,0 +1,141 @@
+package com.profesorfalken.jpowershell;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the cache of command responses
+ *
+ * @author Javier Garcia Alonso
+ */
+public class PowerShellResultCacheTest {
+
+    private final AtomicInteger executions = new AtomicInteger();
+
+    private CompletableFuture<PowerShellResponse> execute(String command) {
+        return CompletableFuture.completedFuture(
+                new PowerShellResponse(false, command + ":" + this.executions.incrementAndGet(), false));
+    }
+
+    @Test
+    public void testCachedResponse() {
+        PowerShellResultCache cache = PowerShellResultCache.create(this::execute);
+
+        Assert.assertEquals("Get-Service:1", cache.executeCommand("Get-Service").getCommandOutput());
+        Assert.assertEquals("Get-Service:1", cache.executeCommand("Get-Service").getCommandOutput());
+        Assert.assertEquals("Get-Process:2", cache.executeCommand("Get-Process").getCommandOutput());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+
+        cache.invalidate("Get-Service");
+        Assert.assertEquals("Get-Service:3", cache.executeCommand("Get-Service").getCommandOutput());
+    }
+
+    @Test
+    public void testExpiredResponse() throws Exception {
+        PowerShellResultCache cache = PowerShellResultCache.create(this::execute);
+
+        Assert.assertEquals("$PSVersionTable:1", cache.executeCommand("$PSVersionTable", 20, TimeUnit.MILLISECONDS).getCommandOutput());
+        Thread.sleep(50);
+        Assert.assertEquals("$PSVersionTable:2", cache.executeCommand("$PSVersionTable").getCommandOutput());
+        Assert.assertEquals("$PSVersionTable:2", cache.executeCommand("$PSVersionTable").getCommandOutput());
+    }
+
+    @Test
+    public void testErrorNotCached() {
+        PowerShellResultCache cache = PowerShellResultCache.create(command ->
+                CompletableFuture.completedFuture(new PowerShellResponse(true, "", this.executions.incrementAndGet() == 1)));
+
+        Assert.assertTrue(cache.executeCommand("Get-Service").isTimeout());
+        Assert.assertFalse(cache.executeCommand("Get-Service").isTimeout());
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testFailedCommandNotCached() {
+        PowerShellResultCache cache = PowerShellResultCache.create(command ->
+                CompletableFuture.completedFuture(new PowerShellResponse(false, "", false, "Not found",
+                        this.executions.incrementAndGet() > 1, null, Duration.ZERO)));
+
+        Assert.assertFalse(cache.executeCommand("Get-Item missing").isSuccess());
+        Assert.assertEquals(0, cache.size());
+        Assert.assertTrue(cache.executeCommand("Get-Item missing").isSuccess());
+        Assert.assertEquals(2, this.executions.get());
+    }
+
+    @Test
+    public void testSharedExecution() {
+        List<CompletableFuture<PowerShellResponse>> pending = new ArrayList<>();
+        PowerShellResultCache cache = PowerShellResultCache.create(command -> {
+            CompletableFuture<PowerShellResponse> response = new CompletableFuture<>();
+            pending.add(response);
+            return response;
+        });
+
+        CompletableFuture<PowerShellResponse> first = cache.executeCommandAsync("Get-Process");
+        CompletableFuture<PowerShellResponse> second = cache.executeCommandAsync("Get-Process");
+        Assert.assertEquals(1, pending.size());
+        Assert.assertFalse(second.isDone());
+
+        pending.get(0).complete(new PowerShellResponse(false, "processes", false));
+        Assert.assertEquals("processes", first.join().getCommandOutput());
+        Assert.assertEquals("processes", second.join().getCommandOutput());
+    }
+
+    @Test
+    public void testCancelledByAllCallers() {
+        List<CompletableFuture<PowerShellResponse>> pending = new ArrayList<>();
+        PowerShellResultCache cache = PowerShellResultCache.create(command -> {
+            CompletableFuture<PowerShellResponse> response = new CompletableFuture<>();
+            pending.add(response);
+            return response;
+        });
+
+        CompletableFuture<PowerShellResponse> first = cache.executeCommandAsync("Get-Process");
+        CompletableFuture<PowerShellResponse> second = cache.executeCommandAsync("Get-Process");
+        first.cancel(true);
+        Assert.assertFalse(pending.get(0).isCancelled());
+
+        //The execution is cancelled with the last caller waiting for it, and nothing is cached
+        second.cancel(true);
+        Assert.assertTrue(pending.get(0).isCancelled());
+        Assert.assertEquals(0, cache.size());
+
+        CompletableFuture<PowerShellResponse> next = cache.executeCommandAsync("Get-Process");
+        Assert.assertEquals(2, pending.size());
+        pending.get(1).complete(new PowerShellResponse(false, "processes", false));
+        Assert.assertEquals("processes", next.join().getCommandOutput());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        PowerShellResultCache cache = PowerShellResultCache.create(this::execute).maxEntries(2);
+
+        cache.executeCommand("a");
+        cache.executeCommand("b");
+        cache.executeCommand("a");
+        cache.executeCommand("c");
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals("a:1", cache.executeCommand("a").getCommandOutput());
+        Assert.assertEquals("b:4", cache.executeCommand("b").getCommandOutput());
+    }
+
+    @Test
+    public void testMaxBytes() {
+        PowerShellResultCache cache = PowerShellResultCache.create(this::execute).maxBytes(150);
+
+        cache.executeCommand("first");
+        cache.executeCommand("second");
+        Assert.assertEquals(1, cache.size());
+        Assert.assertTrue(cache.getBytes() <= 150);
+        Assert.assertEquals("second:2", cache.executeCommand("second").getCommandOutput());
+    }
+}
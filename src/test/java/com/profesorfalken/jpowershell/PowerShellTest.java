@@ -6,9 +6,15 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -142,11 +148,18 @@ public class PowerShellTest {
         if (OSDetector.isWindows()) {
             PowerShell powerShell = PowerShell.openSession();
             PowerShellResponse response = powerShell.executeCommand("sfdsfdsf");
-            System.out.println("Error:" + response.getCommandOutput());
+            System.out.println("Error:" + response.getErrorOutput());
 
-            Assert.assertTrue(response.getCommandOutput().contains("sfdsfdsf"));
+            Assert.assertTrue(response.getErrorOutput().contains("sfdsfdsf"));
+            Assert.assertFalse(response.getCommandOutput().contains("sfdsfdsf"));
+            Assert.assertFalse(response.isSuccess());
             Assert.assertTrue(powerShell.isLastCommandInError());
 
+            response = powerShell.executeCommand("Write-Output ok");
+            Assert.assertTrue(response.isSuccess());
+            Assert.assertEquals("", response.getErrorOutput());
+            Assert.assertFalse(powerShell.isLastCommandInError());
+
             powerShell.close();
         }
     }
@@ -638,6 +651,587 @@ public class PowerShellTest {
 
     }
 
+    /**
+     * Test of executeCommandAsync method, of class PowerShell.
+     */
+    @Test
+    public void testAsyncCommands() throws Exception {
+        System.out.println("testAsyncCommands");
+        if (OSDetector.isWindows()) {
+            try (PowerShell powerShell = PowerShell.openSession()) {
+                CompletableFuture<PowerShellResponse> bios = powerShell.executeCommandAsync("Get-WmiObject Win32_BIOS");
+                CompletableFuture<PowerShellResponse> processes = powerShell.executeCommandAsync("Get-Process");
+
+                Assert.assertTrue(bios.get().getCommandOutput().contains("SMBIOSBIOSVersion"));
+                Assert.assertTrue(processes.get().getCommandOutput().contains("powershell"));
+            }
+        }
+    }
+
+    /**
+     * Test of timeout of executeCommandAsync method, of class PowerShell.
+     */
+    @Test
+    public void testAsyncTimeout() throws Exception {
+        System.out.println("testAsyncTimeout");
+        if (OSDetector.isWindows()) {
+            try (PowerShell powerShell = PowerShell.openSession()) {
+                Map<String, String> config = new HashMap<>();
+                config.put("maxWait", "1000");
+                PowerShellResponse response = powerShell.configuration(config).executeCommandAsync("Start-Sleep -s 5").get();
+
+                Assert.assertTrue("PS error should finish in timeout", response.isTimeout());
+            }
+        }
+    }
+
+    /**
+     * Test of executeCommandStreaming method, of class PowerShell.
+     */
+    @Test
+    public void testStreaming() {
+        System.out.println("testStreaming");
+        if (OSDetector.isWindows()) {
+            try (PowerShell powerShell = PowerShell.openSession()) {
+                List<String> lines = new ArrayList<>();
+                PowerShellResponse response = powerShell.executeCommandStreaming("1..1000", lines::add);
+
+                Assert.assertFalse(response.isError());
+                Assert.assertEquals(1000, lines.size());
+                Assert.assertEquals("1000", lines.get(999));
+            }
+        }
+    }
+
+    /**
+     * Test of executeBatch method, of class PowerShell.
+     */
+    @Test
+    public void testBatch() {
+        System.out.println("testBatch");
+        if (OSDetector.isWindows()) {
+            try (PowerShell powerShell = PowerShell.openSession()) {
+                List<String> commands = new ArrayList<>();
+                for (int i = 0; i < 50; i++) {
+                    commands.add("Write-Output " + i);
+                }
+
+                List<PowerShellResponse> responses = powerShell.executeBatch(commands);
+
+                Assert.assertEquals(50, responses.size());
+                for (int i = 0; i < 50; i++) {
+                    Assert.assertFalse(responses.get(i).isError());
+                    Assert.assertEquals(String.valueOf(i), responses.get(i).getCommandOutput());
+                }
+            }
+        }
+    }
+
+    /**
+     * Test script with args executed without temporary file
+     */
+    @Test
+    public void testInMemoryScriptWithArgs() throws Exception {
+        System.out.println("testInMemoryScriptWithArgs");
+        if (OSDetector.isWindows()) {
+            PowerShell powerShell = PowerShell.openSession();
+            Map<String, String> config = new HashMap<>();
+            config.put("inMemoryScripts", "true");
+            PowerShellResponse response = null;
+
+            StringBuilder scriptContent = new StringBuilder();
+            scriptContent.append("Param([string]$computerName)").append(CRLF);
+            scriptContent.append("$computerName").append(CRLF);
+
+            try {
+                response = powerShell.configuration(config).executeScript(generateScript(scriptContent.toString()), "-computerName SERVER1");
+            } finally {
+                powerShell.close();
+            }
+
+            Assert.assertNotNull("Response null!", response);
+            Assert.assertFalse("Is in error!", response.isError());
+            Assert.assertFalse("Is timeout!", response.isTimeout());
+            Assert.assertTrue(response.getCommandOutput().contains("SERVER1"));
+        }
+    }
+
+    /**
+     * Test script executed several times using the script cache
+     */
+    @Test
+    public void testCachedScript() throws Exception {
+        System.out.println("testCachedScript");
+        if (OSDetector.isWindows()) {
+            Map<String, String> config = new HashMap<>();
+            config.put("cacheScripts", "true");
+
+            StringBuilder scriptContent = new StringBuilder();
+            scriptContent.append("Param([string]$computerName)").append(CRLF);
+            scriptContent.append("$computerName").append(CRLF);
+            String scriptPath = generateScript(scriptContent.toString());
+
+            try (PowerShell powerShell = PowerShell.openSession().configuration(config)) {
+                for (int i = 0; i < 3; i++) {
+                    PowerShellResponse response = powerShell.executeScript(scriptPath, "-computerName SERVER" + i);
+
+                    Assert.assertFalse("Is in error!", response.isError());
+                    Assert.assertEquals("SERVER" + i, response.getCommandOutput());
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of executeCommandAsJson method, of class PowerShell.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testJsonObjects() {
+        System.out.println("testJsonObjects");
+        if (OSDetector.isWindows()) {
+            try (PowerShell powerShell = PowerShell.openSession()) {
+                List<Object> services = new ArrayList<>();
+                PowerShellResponse response = powerShell.executeCommandAsJson(
+                        "Get-Service | Select-Object Name, DisplayName", services::add);
+
+                Assert.assertFalse(response.isError());
+                Assert.assertFalse(services.isEmpty());
+                Assert.assertTrue(((Map<String, Object>) services.get(0)).containsKey("DisplayName"));
+            }
+        }
+    }
+
+    /**
+     * Test of executeCommandAsClixml method, of class PowerShell.
+     */
+    @Test
+    public void testClixmlObjects() {
+        System.out.println("testClixmlObjects");
+        if (OSDetector.isWindows()) {
+            try (PowerShell powerShell = PowerShell.openSession()) {
+                List<Object> processes = new ArrayList<>();
+                PowerShellResponse response = powerShell.executeCommandAsClixml("Get-Process -Id $pid", processes::add);
+
+                Assert.assertFalse(response.isError());
+                Assert.assertEquals(1, processes.size());
+                PowerShellObject process = (PowerShellObject) processes.get(0);
+                Assert.assertTrue(process.getTypeNames().contains("System.Diagnostics.Process"));
+                Assert.assertTrue(process.getProperty("Id") instanceof Integer);
+            }
+        }
+    }
+
+    /**
+     * Test the status of the commands returned with their output
+     */
+    @Test
+    public void testCommandStatus() throws Exception {
+        System.out.println("testCommandStatus");
+        if (OSDetector.isWindows()) {
+            try (PowerShell powerShell = PowerShell.openSession()) {
+                PowerShellResponse response = powerShell.executeCommand("cmd.exe /c exit 3");
+                Assert.assertFalse(response.isSuccess());
+                Assert.assertEquals(Integer.valueOf(3), response.getLastExitCode());
+
+                response = powerShell.executeCommand("Start-Sleep -Milliseconds 300");
+                Assert.assertTrue(response.isSuccess());
+                Assert.assertTrue(response.getElapsedTime().toMillis() >= 300);
+            }
+        }
+    }
+
+    /**
+     * Test that the health check restarts a session whose process died
+     */
+    @Test
+    public void testHealthCheckRestart() throws Exception {
+        System.out.println("testHealthCheckRestart");
+        if (OSDetector.isWindows()) {
+            Map<String, String> config = new HashMap<>();
+            config.put("healthCheckInterval", "200");
+            try (PowerShell powerShell = PowerShell.openSession(null, config)) {
+                powerShell.executeCommand("Stop-Process -Id $pid -Force");
+
+                PowerShellResponse response = null;
+                for (int i = 0; i < 50 && (response == null || response.isError()); i++) {
+                    Thread.sleep(200);
+                    response = powerShell.executeCommand("Write-Output alive");
+                }
+                Assert.assertEquals("alive", response.getCommandOutput());
+            }
+        }
+    }
+
+    /**
+     * Test that a cancelled command does not prevent the next commands from running
+     */
+    @Test
+    public void testCancelCommand() throws Exception {
+        System.out.println("testCancelCommand");
+        if (OSDetector.isWindows()) {
+            Map<String, String> config = new HashMap<>();
+            config.put("restartOnCancel", "true");
+            try (PowerShell powerShell = PowerShell.openSession(null, config)) {
+                CompletableFuture<PowerShellResponse> slowCommand = powerShell.executeCommandAsync(
+                        "Write-Output slow; Start-Sleep -Seconds 30; Write-Output late");
+                Thread.sleep(1000);
+                Assert.assertTrue(slowCommand.cancel(true));
+
+                long start = System.currentTimeMillis();
+                PowerShellResponse response = powerShell.executeCommand("Write-Output next");
+                Assert.assertEquals("next", response.getCommandOutput());
+                Assert.assertTrue(System.currentTimeMillis() - start < 25000);
+            }
+        }
+    }
+
+    /**
+     * Test sessions opened with a builder sharing the same executor
+     */
+    @Test
+    public void testSharedExecutor() throws Exception {
+        System.out.println("testSharedExecutor");
+        if (OSDetector.isWindows()) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(5);
+            try {
+                try (PowerShell first = PowerShell.builder().executor(executor).open();
+                     PowerShell second = PowerShell.builder().executor(executor).open()) {
+                    Assert.assertEquals("1", first.executeCommand("Write-Output 1").getCommandOutput());
+                    Assert.assertEquals("2", second.executeCommand("Write-Output 2").getCommandOutput());
+                }
+                Assert.assertFalse(executor.isShutdown());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Test that the timeout of a command is counted once the previous commands are finished, using the stub console
+     */
+    @Test
+    public void testTimeoutOfQueuedCommands() throws Exception {
+        System.out.println("testTimeoutOfQueuedCommands");
+        Map<String, String> config = new HashMap<>();
+        config.put("maxWait", "5000");
+        try (PowerShell powerShell = PowerShell.openSession(StubPowerShell.createExecutable(), config)) {
+            //The last command finishes after 6 seconds, but it only runs during 2
+            List<CompletableFuture<PowerShellResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                responses.add(powerShell.executeCommandAsync("Start-Sleep -Seconds 2"));
+            }
+
+            for (CompletableFuture<PowerShellResponse> response : responses) {
+                Assert.assertFalse(response.get().isTimeout());
+            }
+
+            //The wait for the previous commands is limited to maxWait too
+            CompletableFuture<PowerShellResponse> hung = powerShell.executeCommandAsync("Start-Sleep -Seconds 30");
+            CompletableFuture<PowerShellResponse> queued = powerShell.executeCommandAsync("Write-Output 'queued'");
+            Assert.assertTrue(hung.get(15, TimeUnit.SECONDS).isTimeout());
+            Assert.assertTrue(queued.get(15, TimeUnit.SECONDS).isTimeout());
+        }
+    }
+
+    /**
+     * Test of a consumer failing while streaming the output, using the stub console
+     */
+    @Test
+    public void testStreamingConsumerFailure() throws Exception {
+        System.out.println("testStreamingConsumerFailure");
+        try (PowerShell powerShell = PowerShell.openSession(StubPowerShell.createExecutable())) {
+            List<String> lines = new ArrayList<>();
+            IllegalStateException failure = new IllegalStateException("Cannot consume line");
+            PowerShellResponse response = powerShell.executeCommandStreaming("1..5", line -> {
+                lines.add(line);
+                if (line.equals("2")) {
+                    throw failure;
+                }
+            });
+
+            Assert.assertTrue(response.isError());
+            Assert.assertFalse(response.isSuccess());
+            Assert.assertSame(failure, response.getException());
+            Assert.assertEquals(2, lines.size());
+            Assert.assertEquals("next", powerShell.executeCommand("Write-Output 'next'").getCommandOutput());
+        }
+    }
+
+    /**
+     * Test that only the objects of the output are parsed as JSON, using the stub console
+     */
+    @Test
+    public void testJsonObjectsWithHostMessages() throws Exception {
+        System.out.println("testJsonObjectsWithHostMessages");
+        try (PowerShell powerShell = PowerShell.openSession(StubPowerShell.createExecutable())) {
+            List<Object> objects = new ArrayList<>();
+            PowerShellResponse response = powerShell.executeCommandAsJson(
+                    "Write-Output 'first'; Write-Host 'WARNING: Resulting JSON is truncated'; Write-Output 'second'", objects::add);
+
+            Assert.assertFalse(response.isError());
+            Assert.assertEquals(Arrays.asList("first", "second"), objects);
+            Assert.assertEquals("WARNING: Resulting JSON is truncated", response.getErrorOutput());
+        }
+    }
+
+    /**
+     * Test that only the objects of the output are deserialized from CLIXML, using the stub console
+     */
+    @Test
+    public void testClixmlObjectsWithHostMessages() throws Exception {
+        System.out.println("testClixmlObjectsWithHostMessages");
+        try (PowerShell powerShell = PowerShell.openSession(StubPowerShell.createExecutable())) {
+            List<Object> objects = new ArrayList<>();
+            PowerShellResponse response = powerShell.executeCommandAsClixml(
+                    "Write-Host 'Loading'; Write-Output 'first'; Write-Output 'second'", objects::add);
+
+            Assert.assertFalse(response.isError());
+            Assert.assertEquals(Arrays.asList("first", "second"), objects);
+            Assert.assertEquals("Loading", response.getErrorOutput());
+        }
+    }
+
+    /**
+     * Test that a coalesced command is only cancelled when all its callers cancel it, using the stub console
+     */
+    @Test
+    public void testCancelCoalescedCommand() throws Exception {
+        System.out.println("testCancelCoalescedCommand");
+        Map<String, String> config = new HashMap<>();
+        config.put("coalesceCommands", "true");
+        config.put("restartOnCancel", "true");
+        PowerShellMetricsRecorder recorder = new PowerShellMetricsRecorder();
+        try (PowerShell powerShell = PowerShell.builder().executablePath(StubPowerShell.createExecutable())
+                .configuration(config).metrics(recorder).open()) {
+            CompletableFuture<PowerShellResponse> first = powerShell.executeCommandAsync("Start-Sleep -Seconds 30");
+            CompletableFuture<PowerShellResponse> second = powerShell.executeCommandAsync("Start-Sleep -Seconds 30");
+            Thread.sleep(500);
+            first.cancel(true);
+            Assert.assertEquals(0, recorder.getCancelledCommands());
+
+            second.cancel(true);
+            Assert.assertEquals(1, recorder.getCancelledCommands());
+
+            //The process running the command is restarted, so the next command does not wait for it
+            long start = System.currentTimeMillis();
+            Assert.assertEquals("next", powerShell.executeCommand("Write-Output 'next'").getCommandOutput());
+            Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+        }
+    }
+
+    /**
+     * Test that the health check restarts a session still running a command which finished in timeout,
+     * using the stub console
+     */
+    @Test
+    public void testHealthCheckRestartHungCommand() throws Exception {
+        System.out.println("testHealthCheckRestartHungCommand");
+        Map<String, String> config = new HashMap<>();
+        config.put("maxWait", "1000");
+        config.put("healthCheckInterval", "200");
+        config.put("healthCheckTimeout", "300");
+        PowerShellMetricsRecorder recorder = new PowerShellMetricsRecorder();
+        try (PowerShell powerShell = PowerShell.builder().executablePath(StubPowerShell.createExecutable())
+                .configuration(config).metrics(recorder).open()) {
+            Assert.assertTrue(powerShell.executeCommand("Start-Sleep -Seconds 30").isTimeout());
+
+            PowerShellResponse response = null;
+            long deadline = System.currentTimeMillis() + 20000;
+            while ((response == null || response.isError()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(200);
+                response = powerShell.executeCommand("Write-Output 'alive'");
+            }
+            Assert.assertEquals("alive", response.getCommandOutput());
+            Assert.assertEquals(1, recorder.getRestartedSessions());
+        }
+    }
+
+    /**
+     * Test that the commands sent while the session is restarted are queued until the new process is ready,
+     * instead of waiting for it to start, using the stub console
+     */
+    @Test
+    public void testCommandDuringRestart() throws Exception {
+        System.out.println("testCommandDuringRestart");
+        Map<String, String> config = new HashMap<>();
+        config.put("maxWait", "1000");
+        config.put("healthCheckInterval", "100");
+        config.put("healthCheckTimeout", "100");
+        PowerShellMetricsRecorder recorder = new PowerShellMetricsRecorder();
+        try (PowerShell powerShell = PowerShell.builder().executablePath(StubPowerShell.createExecutable())
+                .configuration(config).metrics(recorder).open()) {
+            String pid = powerShell.executeCommand("$pid").getCommandOutput();
+            Assert.assertTrue(powerShell.executeCommand("Start-Sleep -Seconds 30").isTimeout());
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (recorder.getRestartedSessions() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(1, recorder.getRestartedSessions());
+
+            //Commands are sent while the new process starts, without waiting for it
+            List<CompletableFuture<PowerShellResponse>> queued = new ArrayList<>();
+            long restartEnd = System.currentTimeMillis() + 1000;
+            while (System.currentTimeMillis() < restartEnd) {
+                long start = System.currentTimeMillis();
+                queued.add(powerShell.executeCommandAsync("$pid"));
+                Assert.assertTrue(System.currentTimeMillis() - start < 100);
+                Thread.sleep(20);
+            }
+
+            PowerShellResponse response = queued.get(queued.size() - 1).get(10, TimeUnit.SECONDS);
+            Assert.assertFalse(response.isError());
+            Assert.assertNotEquals(pid, response.getCommandOutput());
+        }
+    }
+
+    /**
+     * Test that a process which could not be restarted is started again later, while the commands wait for it,
+     * using the stub console
+     */
+    @Test
+    public void testRestartRetry() throws Exception {
+        System.out.println("testRestartRetry");
+        if (!OSDetector.isWindows()) {
+            //Launcher which fails while the file exists
+            File failure = File.createTempFile("stubfailure", ".flag");
+            failure.delete();
+            File launcher = File.createTempFile("stubpowershell", ".sh");
+            try (Writer writer = new FileWriter(launcher)) {
+                writer.write("#!/bin/sh\n[ -f '" + failure.getAbsolutePath() + "' ] && exit 1\nexec '"
+                        + StubPowerShell.createExecutable() + "' \"$@\"\n");
+            }
+            launcher.setExecutable(true);
+
+            Map<String, String> config = new HashMap<>();
+            config.put("maxWait", "15000");
+            config.put("restartOnCancel", "true");
+            PowerShellMetricsRecorder recorder = new PowerShellMetricsRecorder();
+            try (PowerShell powerShell = PowerShell.builder().executablePath(launcher.getAbsolutePath())
+                    .configuration(config).metrics(recorder).open()) {
+                String pid = powerShell.executeCommand("$pid").getCommandOutput();
+                Assert.assertTrue(failure.createNewFile());
+                CompletableFuture<PowerShellResponse> slowCommand = powerShell.executeCommandAsync("Start-Sleep -Seconds 30");
+                Thread.sleep(300);
+                Assert.assertTrue(slowCommand.cancel(true));
+                Thread.sleep(1000);
+
+                //The restart failed, so the command waits for the next attempt
+                CompletableFuture<PowerShellResponse> queued = powerShell.executeCommandAsync("$pid");
+                Assert.assertTrue(failure.delete());
+                PowerShellResponse response = queued.get(15, TimeUnit.SECONDS);
+                Assert.assertFalse(response.isError());
+                Assert.assertNotEquals(pid, response.getCommandOutput());
+                Assert.assertEquals(1, recorder.getRestartedSessions());
+            } finally {
+                failure.delete();
+                launcher.delete();
+            }
+        }
+    }
+
+    /**
+     * Test that the output of a command which finished in timeout does not reach the next command,
+     * using the stub console
+     */
+    @Test
+    public void testCommandAfterTimeout() throws Exception {
+        System.out.println("testCommandAfterTimeout");
+        Map<String, String> config = new HashMap<>();
+        config.put("maxWait", "1500");
+        PowerShellMetricsRecorder recorder = new PowerShellMetricsRecorder();
+        try (PowerShell powerShell = PowerShell.builder().executablePath(StubPowerShell.createExecutable())
+                .configuration(config).metrics(recorder).open()) {
+            //The output written after the timeout is drained and ignored
+            Assert.assertTrue(powerShell.executeCommand("Write-Output 'slow'\nStart-Sleep -Seconds 2\nWrite-Output 'late'").isTimeout());
+
+            PowerShellResponse response = powerShell.executeCommand("Write-Output 'next'");
+            Assert.assertFalse(response.isTimeout());
+            Assert.assertEquals("next", response.getCommandOutput());
+            //The command which finished in timeout is not reported again once drained
+            Assert.assertEquals(1, recorder.getTimedOutCommands());
+            Assert.assertEquals(1, recorder.getCompletedCommands());
+            Assert.assertEquals(0, recorder.getFailedCommands());
+        }
+    }
+
+    /**
+     * Test of a command cancelled while running, which is drained before the next command, using the stub console
+     */
+    @Test
+    public void testCancelRunningCommand() throws Exception {
+        System.out.println("testCancelRunningCommand");
+        PowerShellMetricsRecorder recorder = new PowerShellMetricsRecorder();
+        try (PowerShell powerShell = PowerShell.builder().executablePath(StubPowerShell.createExecutable())
+                .metrics(recorder).open()) {
+            String pid = powerShell.executeCommand("$pid").getCommandOutput();
+            CompletableFuture<PowerShellResponse> slowCommand = powerShell.executeCommandAsync("Start-Sleep -Seconds 2");
+            Thread.sleep(300);
+            Assert.assertTrue(slowCommand.cancel(true));
+
+            Assert.assertEquals("next", powerShell.executeCommand("Write-Output 'next'").getCommandOutput());
+            Assert.assertEquals(pid, powerShell.executeCommand("$pid").getCommandOutput());
+            Assert.assertEquals(1, recorder.getCancelledCommands());
+            Assert.assertEquals(3, recorder.getCompletedCommands());
+            Assert.assertEquals(0, recorder.getRestartedSessions());
+        }
+    }
+
+    /**
+     * Test of a command cancelled while running with restartOnCancel, which restarts the process, using the stub console
+     */
+    @Test
+    public void testCancelRunningCommandWithRestart() throws Exception {
+        System.out.println("testCancelRunningCommandWithRestart");
+        Map<String, String> config = new HashMap<>();
+        config.put("restartOnCancel", "true");
+        PowerShellMetricsRecorder recorder = new PowerShellMetricsRecorder();
+        try (PowerShell powerShell = PowerShell.builder().executablePath(StubPowerShell.createExecutable())
+                .configuration(config).metrics(recorder).open()) {
+            String pid = powerShell.executeCommand("$pid").getCommandOutput();
+            CompletableFuture<PowerShellResponse> slowCommand = powerShell.executeCommandAsync("Start-Sleep -Seconds 30");
+            Thread.sleep(300);
+            Assert.assertTrue(slowCommand.cancel(true));
+
+            long start = System.currentTimeMillis();
+            Assert.assertEquals("next", powerShell.executeCommand("Write-Output 'next'").getCommandOutput());
+            Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+            Assert.assertNotEquals(pid, powerShell.executeCommand("$pid").getCommandOutput());
+            Assert.assertEquals(1, recorder.getCancelledCommands());
+            Assert.assertEquals(1, recorder.getRestartedSessions());
+        }
+    }
+
+    /**
+     * Test that the commands sent after a cancelled command do not wait for the restart of the process, using the stub console
+     */
+    @Test
+    public void testCommandAfterCancelWithRestart() throws Exception {
+        System.out.println("testCommandAfterCancelWithRestart");
+        Map<String, String> config = new HashMap<>();
+        config.put("restartOnCancel", "true");
+        try (PowerShell powerShell = PowerShell.openSession(StubPowerShell.createExecutable(), config)) {
+            String pid = powerShell.executeCommand("$pid").getCommandOutput();
+            CompletableFuture<PowerShellResponse> slowCommand = powerShell.executeCommandAsync("Start-Sleep -Seconds 30");
+            Thread.sleep(300);
+            Assert.assertTrue(slowCommand.cancel(true));
+
+            //The command is queued for the new process, which is still starting
+            long start = System.currentTimeMillis();
+            CompletableFuture<PowerShellResponse> next = powerShell.executeCommandAsync("$pid");
+            Assert.assertTrue(System.currentTimeMillis() - start < 100);
+            Assert.assertFalse(next.isDone());
+            List<PowerShellResponse> batch = powerShell.executeBatch(Arrays.asList("Write-Output 'a'", "Write-Output 'b'"));
+
+            String newPid = next.get(10, TimeUnit.SECONDS).getCommandOutput();
+            Assert.assertNotEquals(pid, newPid);
+            Assert.assertEquals("a", batch.get(0).getCommandOutput());
+            Assert.assertEquals("b", batch.get(1).getCommandOutput());
+            Assert.assertEquals(newPid, powerShell.executeCommand("$pid").getCommandOutput());
+        }
+    }
+
     private static String generateScript(String scriptContent) throws Exception {
         File tmpFile = null;
         FileWriter writer = null;
@@ -0,0 +1,39 @@
+package com.profesorfalken.jpowershell;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the threads used by the sessions running on virtual threads
+ *
+ * @author Javier Garcia Alonso
+ */
+public class PowerShellThreadsTest {
+
+    @Test
+    public void testVirtualThreadExecutor() throws Exception {
+        ExecutorService executor = PowerShellThreads.newVirtualThreadExecutor();
+        if (!PowerShellThreads.isVirtualThreadSupported()) {
+            Assert.assertNull(executor);
+            return;
+        }
+
+        Assert.assertNotNull(executor);
+        try {
+            String threadDescription = executor.submit(() -> Thread.currentThread().toString()).get(5, TimeUnit.SECONDS);
+            Assert.assertTrue(threadDescription, threadDescription.startsWith("VirtualThread"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTimeoutScheduler() throws Exception {
+        Assert.assertSame(PowerShellThreads.getTimeoutScheduler(), PowerShellThreads.getTimeoutScheduler());
+        Assert.assertEquals("OK", PowerShellThreads.getTimeoutScheduler()
+                .schedule(() -> "OK", 10, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016-2019 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.jpowershell;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal replacement of the PowerShell console used to test and benchmark jPowerShell without PowerShell.<p>
+ * It reads commands from the standard input, one per line, and understands only the few commands
+ * used by jPowerShell and by the benchmarks:
+ * <ul>
+ * <li>the end markers written by jPowerShell after each command: writes them to the standard and error
+ * outputs, with a successful status and no elapsed time</li>
+ * <li>$pid: writes the process identifier</li>
+ * <li>Write-Output "text": writes the text</li>
+ * <li>1..N: writes the numbers from 1 to N, one per line</li>
+ * <li>Start-Sleep -Seconds N: blocks the console during N seconds, like a command which hangs</li>
+ * <li>the commands whose objects are read as JSON or CLIXML by jPowerShell, made of Write-Output 'text' and
+ * Write-Host 'text' separated by semicolons: writes the text of Write-Output tagged and serialized,
+ * and the one of Write-Host as it is</li>
+ * <li>the path of a script file or an in-memory script block: writes the lines of the script</li>
+ * <li>exit: ends the process</li>
+ * </ul>
+ * Any other command, like the stopwatch started by jPowerShell before each command, is ignored.
+ *
+ * @author Javier Garcia Alonso
+ */
+public class StubPowerShell {
+
+    private static final Pattern END_MARKERS = Pattern.compile(
+            "^\\$jpowershellSuccess = \\$\\?; .*\\[Console\\]::Error\\.WriteLine\\(\"(.*)\"\\); Write-Output \"(.*);\\$LASTEXITCODE;.*\"$");
+    private static final Pattern WRITE_OUTPUT = Pattern.compile("^(?:\\$jpowershellSuccess = \\$\\?; )?Write-Output [\"'](.*)[\"']$");
+    private static final Pattern RANGE = Pattern.compile("^1\\.\\.(\\d+)$");
+    private static final Pattern SLEEP = Pattern.compile("^Start-Sleep -Seconds (\\d+)$");
+    private static final Pattern OBJECTS = Pattern.compile("^\\. \\{ (.*) \\} \\| ForEach-Object \\{ '([^']*)' \\+ (.*) \\}$");
+    private static final Pattern WRITE_HOST = Pattern.compile("^Write-Host [\"'](.*)[\"']$");
+    private static final Pattern SCRIPT_BLOCK = Pattern.compile("^& .*FromBase64String\\('([^']*)'\\)\\)\\)\\).*$");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BufferedReader input = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        PrintWriter output = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        PrintWriter errorOutput = new PrintWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8), true);
+
+        String line;
+        while ((line = input.readLine()) != null) {
+            Matcher matcher;
+            if (line.equals("exit")) {
+                break;
+            } else if ((matcher = END_MARKERS.matcher(line)).matches()) {
+                errorOutput.println(matcher.group(1));
+                output.println(matcher.group(2).replace("$jpowershellSuccess", "True") + ";;--");
+            } else if (line.equals("$pid")) {
+                output.println(ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+            } else if ((matcher = WRITE_OUTPUT.matcher(line)).matches()) {
+                output.println(matcher.group(1));
+            } else if ((matcher = RANGE.matcher(line)).matches()) {
+                int count = Integer.parseInt(matcher.group(1));
+                for (int i = 1; i <= count; i++) {
+                    output.println(i);
+                }
+            } else if ((matcher = SLEEP.matcher(line)).matches()) {
+                output.flush();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(Long.parseLong(matcher.group(1))));
+            } else if ((matcher = OBJECTS.matcher(line)).matches()) {
+                writeObjects(matcher.group(1).split("; "), matcher.group(2), matcher.group(3).contains("PSSerializer"), output);
+            } else if ((matcher = SCRIPT_BLOCK.matcher(line)).matches()) {
+                output.println(new String(Base64.getDecoder().decode(matcher.group(1)), StandardCharsets.UTF_8));
+            } else {
+                writeScript(line, output);
+            }
+
+            //Only flush when there is nothing else to process, as a real console would do
+            if (!input.ready()) {
+                output.flush();
+            }
+        }
+        output.flush();
+    }
+
+    /**
+     * Creates an executable which launches the stub console using the current JVM and classpath, to be
+     * used as PowerShell executable path when opening a session
+     *
+     * @return the path of the executable
+     * @throws IOException if the executable cannot be written
+     */
+    public static String createExecutable() throws IOException {
+        String java = new File(System.getProperty("java.home"), "bin" + File.separator + "java").getAbsolutePath();
+        String launch = "\"" + java + "\" -cp \"" + System.getProperty("java.class.path") + "\" "
+                + StubPowerShell.class.getName();
+
+        File executable;
+        String content;
+        if (File.separatorChar == '\\') {
+            executable = File.createTempFile("stubpowershell", ".cmd");
+            content = "@" + launch + " %*\r\n";
+        } else {
+            executable = File.createTempFile("stubpowershell", ".sh");
+            content = "#!/bin/sh\nexec " + launch + " \"$@\"\n";
+        }
+        executable.deleteOnExit();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(executable), StandardCharsets.UTF_8)) {
+            writer.write(content);
+        }
+        executable.setExecutable(true);
+        return executable.getAbsolutePath();
+    }
+
+    //Writes the text of each Write-Output as a tagged object and the one of each Write-Host as it is
+    private static void writeObjects(String[] commands, String tag, boolean clixml, PrintWriter output) {
+        for (String command : commands) {
+            Matcher matcher;
+            if ((matcher = WRITE_OUTPUT.matcher(command)).matches()) {
+                String text = matcher.group(1);
+                if (clixml) {
+                    String serialized = "<Objs Version=\"1.1.0.1\" xmlns=\"http://schemas.microsoft.com/powershell/2004/04\"><S>"
+                            + text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;") + "</S></Objs>";
+                    output.println(tag + Base64.getEncoder().encodeToString(serialized.getBytes(StandardCharsets.UTF_8)));
+                } else {
+                    output.println(tag + "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+                }
+            } else if ((matcher = WRITE_HOST.matcher(command)).matches()) {
+                output.println(matcher.group(1));
+            }
+        }
+    }
+
+    //If the command is the path of a script, writes its content
+    private static void writeScript(String command, PrintWriter output) throws IOException {
+        int extension = command.indexOf(".ps1");
+        if (extension > 0) {
+            File script = new File(command.substring(0, extension + 4));
+            if (script.isFile()) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(script), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        output.println(line);
+                    }
+                }
+            }
+        }
+    }
+}